@@ -38,9 +38,18 @@ class FlowLayoutController(
 ) {
     internal var recalculate = true
 
+    /** Set whenever children are added or removed, so the cached rows can no longer be trusted. */
+    private var childrenChanged = true
+
     class Layout(var x: Float, var y: Float, var yPadding: Float)
     private val cachedLayout = mutableMapOf<UIComponent, Layout>()
 
+    private class Row(val startIndex: Int, val size: Int, val maxHeight: Float, val y: Float)
+    private val cachedRows = mutableListOf<Row>()
+    private var lastContainerWidth = Float.NaN
+    private var lastWidths = FloatArray(0)
+    private var lastHeights = FloatArray(0)
+
     fun getLayout(component: UIComponent): Layout {
         if (recalculate) {
             layout()
@@ -50,50 +59,90 @@ class FlowLayoutController(
             ?: error("Component $component's position was not laid out by $this")
     }
 
+    /**
+     * Only rows from the first child which changed size onward are flowed and laid out again.
+     * Measuring is not incremental: constraints are recalculated every frame, so we cannot tell which children kept
+     * their size without asking each of them.
+     */
     private fun layout() {
+        val children = component.children
         val containerWidth = component.getWidth()
+        val widths = FloatArray(children.size) { children[it].getWidth() }
+        val heights = FloatArray(children.size) { children[it].getHeight() }
 
-        class Row(val startIndex: Int, override val size: Int, val maxHeight: Float) : AbstractList<Float>() {
-            override fun get(index: Int): Float = component.children[startIndex + index].getWidth()
-        }
-        val rows = sequence {
-            val spacing = xSpacingMin.roundToRealPixels()
-            var startIndex = 0
-            var size = 0
-            var currentWidth = -spacing
-            var maxHeight = 0f
-            for ((index, child) in component.children.withIndex()) {
-                val childWidth = child.getWidth()
-                if (currentWidth + spacing + childWidth > containerWidth + EPSILON && size > 0) {
-                    yield(Row(startIndex, size, maxHeight))
-                    startIndex = index
-                    size = 0
-                    currentWidth = -spacing
-                    maxHeight = 0f
-                }
-                size++
-                currentWidth += spacing + childWidth
-                maxHeight = max(maxHeight, child.getHeight())
+        // Rows ending before the first child which changed size are unaffected, so we only need to re-flow from there.
+        // If that child starts its row, we re-flow from the row before, because the child may now fit into it.
+        // Otherwise we re-flow from the child's own row.
+        var firstDirty = 0
+        if (!childrenChanged && containerWidth == lastContainerWidth && widths.size == lastWidths.size) {
+            while (firstDirty < widths.size && widths[firstDirty] == lastWidths[firstDirty] && heights[firstDirty] == lastHeights[firstDirty]) {
+                firstDirty++
             }
-            if (size > 0) {
-                yield(Row(startIndex, size, maxHeight))
+        }
+        lastWidths = widths
+        lastHeights = heights
+        lastContainerWidth = containerWidth
+        childrenChanged = false
+
+        if (firstDirty == widths.size && firstDirty > 0) {
+            return
+        }
+
+        var firstDirtyRow = 0
+        if (firstDirty > 0) {
+            while (firstDirtyRow + 1 < cachedRows.size && cachedRows[firstDirtyRow + 1].startIndex < firstDirty) {
+                firstDirtyRow++
             }
         }
+        val restart = cachedRows.getOrNull(firstDirtyRow)
+        while (cachedRows.size > firstDirtyRow) {
+            cachedRows.removeAt(cachedRows.lastIndex)
+        }
 
-        var y = 0f
-        for ((rowIndex, row) in rows.withIndex()) {
-            itemArrangement.arrange(containerWidth, row) { i, x ->
-                val child = component.children[row.startIndex + i]
-                val height = child.getHeight()
-                cachedLayout[child] = Layout(
-                    x = x,
-                    y = y + itemAlignment.align(row.maxHeight, height),
-                    // This allows ChildBasedSizeConstraint to function for the parent height by emitting negative
-                    // padding for all but the first item in a row
-                    yPadding = (if (i == 0) row.maxHeight + (if (rowIndex == 0) 0f else ySpacing) else 0f) - height,
-                )
+        val spacing = xSpacingMin.roundToRealPixels()
+        var y = restart?.y ?: 0f
+        var startIndex = restart?.startIndex ?: 0
+        var size = 0
+        var currentWidth = -spacing
+        var maxHeight = 0f
+        fun finishRow() {
+            val row = Row(startIndex, size, maxHeight, y)
+            layoutRow(row, cachedRows.size, containerWidth, widths, heights)
+            cachedRows.add(row)
+            y += maxHeight + ySpacing
+        }
+        for (index in startIndex until widths.size) {
+            val childWidth = widths[index]
+            if (currentWidth + spacing + childWidth > containerWidth + EPSILON && size > 0) {
+                finishRow()
+                startIndex = index
+                size = 0
+                currentWidth = -spacing
+                maxHeight = 0f
             }
-            y += row.maxHeight + ySpacing
+            size++
+            currentWidth += spacing + childWidth
+            maxHeight = max(maxHeight, heights[index])
+        }
+        if (size > 0) {
+            finishRow()
+        }
+    }
+
+    private fun layoutRow(row: Row, rowIndex: Int, containerWidth: Float, widths: FloatArray, heights: FloatArray) {
+        val rowWidths = object : AbstractList<Float>() {
+            override val size: Int get() = row.size
+            override fun get(index: Int): Float = widths[row.startIndex + index]
+        }
+        itemArrangement.arrange(containerWidth, rowWidths) { i, x ->
+            val child = component.children[row.startIndex + i]
+            val height = heights[row.startIndex + i]
+            val layout = cachedLayout.getOrPut(child) { Layout(0f, 0f, 0f) }
+            layout.x = x
+            layout.y = row.y + itemAlignment.align(row.maxHeight, height)
+            // This allows ChildBasedSizeConstraint to function for the parent height by emitting negative
+            // padding for all but the first item in a row
+            layout.yPadding = (if (i == 0) row.maxHeight + (if (rowIndex == 0) 0f else ySpacing) else 0f) - height
         }
     }
 
@@ -103,6 +152,7 @@ class FlowLayoutController(
             @Suppress("UNCHECKED_CAST")
             val event = maybeEvent as? ObservableListEvent<UIComponent> ?: return@addObserver
             recalculate = true
+            childrenChanged = true
             when (event) {
                 is ObservableAddEvent -> applyConstraints(event.element.value)
                 is ObservableRemoveEvent -> cachedLayout.remove(event.element.value)
@@ -42,6 +42,9 @@ abstract class ArrangementInstance(
     internal var recalculatePositions = true
     internal var recalculateSizes = true
 
+    /** Set whenever children are added or removed, so cached per-child layout data can no longer be trusted. */
+    protected var childrenChanged = true
+
     protected lateinit var boundComponent: UIComponent
         private set
     protected val lastPosValues = hashMapOf<UIComponent, Float>()
@@ -51,11 +54,15 @@ abstract class ArrangementInstance(
     open fun layoutSizes() {}
     abstract fun getPadding(child: UIComponent): Float
 
-    fun getPosValue(component: UIComponent): Float {
+    protected fun ensurePositionsLaidOut() {
         if (recalculatePositions) {
             layoutPositions()
             recalculatePositions = false
         }
+    }
+
+    fun getPosValue(component: UIComponent): Float {
+        ensurePositionsLaidOut()
         return lastPosValues[component]
             ?: error("Component $component's position was not laid out by arrangement $this")
     }
@@ -74,7 +81,9 @@ abstract class ArrangementInstance(
         boundComponent = component
         component.children.forEach(::conformChild)
         component.children.addObserver { _, arg ->
-            when (val event = arg as? ObservableListEvent<UIComponent> ?: return@addObserver) {
+            val event = arg as? ObservableListEvent<UIComponent> ?: return@addObserver
+            childrenChanged = true
+            when (event) {
                 is ObservableAddEvent -> conformChild(event.element.value)
                 is ObservableRemoveEvent -> {
                     lastPosValues.remove(event.element.value)
@@ -121,28 +130,63 @@ private open class SpacedArrangement(
     protected val spacing: Float = 0f,
     protected val floatPosition: FloatPosition = FloatPosition.CENTER,
 ) : ArrangementInstance(axis) {
-    open fun getSpacing(parent: UIComponent) = spacing
+    /** Main axis sizes of the children as of the last [layoutPositions] call. */
+    private var lastChildSizes = FloatArray(0)
+    private var lastStart = Float.NaN
+    /** Spacing between children as of the last [layoutPositions] call. */
+    protected var lastSpacing = Float.NaN
+        private set
+
+    open fun getSpacing(parent: UIComponent, childrenSize: Float) = spacing
 
-    open fun getStartOffset(parent: UIComponent, spacing: Float): Float {
-        val childrenSize = parent.children.sumOf { it.getMainAxisSize() } + spacing * (parent.children.size - 1)
+    open fun getStartOffset(parent: UIComponent, spacing: Float, childrenSize: Float): Float {
+        val totalSize = childrenSize + spacing * (parent.children.size - 1)
         return when (floatPosition) {
             FloatPosition.START -> 0f
-            FloatPosition.CENTER -> parent.getMainAxisSize() / 2 - childrenSize / 2
-            FloatPosition.END -> parent.getMainAxisSize() - childrenSize
+            FloatPosition.CENTER -> parent.getMainAxisSize() / 2 - totalSize / 2
+            FloatPosition.END -> parent.getMainAxisSize() - totalSize
         }
     }
 
+    /**
+     * Only the positions from the first child which changed size onward are written again. Every child still needs to
+     * be measured on each pass though: Elementa invalidates all constraints every frame, so there is no per-child signal
+     * telling us which sizes may have changed.
+     */
     override fun layoutPositions() {
-        val spacing = getSpacing(boundComponent).roundToRealPixels()
-        var nextStart = boundComponent.getMainAxisStart() + getStartOffset(boundComponent, spacing).roundToRealPixels()
-        boundComponent.children.forEach {
-            lastPosValues[it] = nextStart
-            nextStart += it.getMainAxisSize() + spacing
+        val children = boundComponent.children
+        val sizes = FloatArray(children.size) { children[it].getMainAxisSize() }
+        val childrenSize = sizes.sum()
+        val spacing = getSpacing(boundComponent, childrenSize).roundToRealPixels()
+        val start = boundComponent.getMainAxisStart() + getStartOffset(boundComponent, spacing, childrenSize).roundToRealPixels()
+
+        // Children before the first one which changed size keep their position, so only the remainder needs to be
+        // laid out again. Any change affecting the start or spacing (including one to the total size when floating)
+        // shifts every child though.
+        var firstDirty = 0
+        if (!childrenChanged && start == lastStart && spacing == lastSpacing && sizes.size == lastChildSizes.size) {
+            while (firstDirty < sizes.size && sizes[firstDirty] == lastChildSizes[firstDirty]) {
+                firstDirty++
+            }
         }
+
+        var nextStart = if (firstDirty == 0) start else {
+            val previous = firstDirty - 1
+            lastPosValues.getValue(children[previous]) + sizes[previous] + spacing
+        }
+        for (index in firstDirty until children.size) {
+            lastPosValues[children[index]] = nextStart
+            nextStart += sizes[index] + spacing
+        }
+
+        lastChildSizes = sizes
+        lastStart = start
+        lastSpacing = spacing
+        childrenChanged = false
     }
 
     override fun getPadding(child: UIComponent): Float {
-        return if (child === boundComponent.children.last()) 0f else getSpacing(boundComponent).roundToRealPixels()
+        return if (child === boundComponent.children.last()) 0f else spacing.roundToRealPixels()
     }
 
     data class Factory(val spacing: Float, val floatPosition: FloatPosition) : Arrangement {
@@ -167,9 +211,21 @@ private open class SpacedArrangement(
     object DefaultFactory : Arrangement by Factory(0f, FloatPosition.CENTER)
 }
 
-private class SpaceBetweenArrangement(axis: Axis) : SpacedArrangement(axis) {
-    override fun getSpacing(parent: UIComponent): Float {
-        return (parent.getMainAxisSize() - parent.children.sumOf { it.getMainAxisSize() }) / (parent.children.size - 1)
+/**
+ * A [SpacedArrangement] whose spacing depends on the size of its children, so padding is taken from the spacing
+ * computed during the last layout pass rather than summing all children again for every one of them.
+ */
+private abstract class DistributedArrangement(axis: Axis) : SpacedArrangement(axis) {
+    override fun getPadding(child: UIComponent): Float {
+        if (child === boundComponent.children.last()) return 0f
+        ensurePositionsLaidOut()
+        return lastSpacing
+    }
+}
+
+private class SpaceBetweenArrangement(axis: Axis) : DistributedArrangement(axis) {
+    override fun getSpacing(parent: UIComponent, childrenSize: Float): Float {
+        return (parent.getMainAxisSize() - childrenSize) / (parent.children.size - 1)
     }
 
     object Factory : Arrangement {
@@ -189,12 +245,12 @@ private class SpaceBetweenArrangement(axis: Axis) : SpacedArrangement(axis) {
     }
 }
 
-private class SpaceEvenlyArrangement(axis: Axis) : SpacedArrangement(axis) {
-    override fun getSpacing(parent: UIComponent): Float {
-        return (parent.getMainAxisSize() - parent.children.sumOf { it.getMainAxisSize() }) / (parent.children.size + 1)
+private class SpaceEvenlyArrangement(axis: Axis) : DistributedArrangement(axis) {
+    override fun getSpacing(parent: UIComponent, childrenSize: Float): Float {
+        return (parent.getMainAxisSize() - childrenSize) / (parent.children.size + 1)
     }
 
-    override fun getStartOffset(parent: UIComponent, spacing: Float): Float {
+    override fun getStartOffset(parent: UIComponent, spacing: Float, childrenSize: Float): Float {
         return spacing
     }
 
@@ -214,12 +270,12 @@ private class SpaceEvenlyArrangement(axis: Axis) : SpacedArrangement(axis) {
     }
 }
 
-private class SpaceAroundArrangement(axis: Axis) : SpacedArrangement(axis) {
-    override fun getSpacing(parent: UIComponent): Float {
-        return (parent.getMainAxisSize() - parent.children.sumOf { it.getMainAxisSize() }) / parent.children.size
+private class SpaceAroundArrangement(axis: Axis) : DistributedArrangement(axis) {
+    override fun getSpacing(parent: UIComponent, childrenSize: Float): Float {
+        return (parent.getMainAxisSize() - childrenSize) / parent.children.size
     }
 
-    override fun getStartOffset(parent: UIComponent, spacing: Float): Float {
+    override fun getStartOffset(parent: UIComponent, spacing: Float, childrenSize: Float): Float {
         return spacing / 2
     }
 
@@ -14,13 +14,9 @@ package gg.essential.util;
 import gg.essential.elementa.state.BasicState;
 import gg.essential.gui.common.ReadOnlyState;
 import gg.essential.gui.elementa.state.v2.State;
-import gg.essential.lib.gson.Gson;
-import gg.essential.lib.gson.JsonElement;
-import gg.essential.lib.gson.JsonObject;
-import gg.essential.lib.gson.JsonParser;
+import gg.essential.lib.caffeine.cache.AsyncLoadingCache;
+import gg.essential.lib.caffeine.cache.Caffeine;
 import kotlinx.coroutines.Dispatchers;
-import okhttp3.Request;
-import okhttp3.Response;
 
 import java.io.IOException;
 import java.util.List;
@@ -29,14 +25,23 @@ import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import static gg.essential.util.EssentialGuiExtensionsKt.toState;
 import static kotlinx.coroutines.ExecutorsKt.asExecutor;
 
 public class UuidNameLookup {
 
-    private static final String UUID_TO_NAME_API = "https://sessionserver.mojang.com/session/minecraft/profile/";
-    private static final String NAME_TO_UUID_API = "https://api.mojang.com/users/profiles/minecraft/";
+    private static final ProfileResolver resolver = new ProfileResolver();
+
+    // Stores any successful or in progress loading futures, so skin changes are picked up again after a while
+    private static final AsyncLoadingCache<UUID, Profile> profileLoadingFutures = Caffeine.newBuilder()
+        .expireAfterWrite(1, TimeUnit.HOURS)
+        .buildAsync((uuid, executor) -> resolver.fetchProfileAsync(uuid).thenApply(profile -> {
+            profileFetched(uuid, profile);
+            return profile;
+        }));
 
     // Stores any successful or in progress loading futures
     private static final ConcurrentHashMap<UUID, CompletableFuture<String>> uuidLoadingFutures = new ConcurrentHashMap<>();
@@ -44,66 +49,70 @@ public class UuidNameLookup {
     // Stores any successful or in progress loading futures
     private static final ConcurrentHashMap<String, CompletableFuture<UUID>> nameLoadingFutures = new ConcurrentHashMap<>();
 
-    private static Profile fetchProfile(String apiAddress) throws PlayerNotFoundException, RateLimitException, IOException {
-        Request request = new Request.Builder().url(apiAddress).header("Content-Type", "application/json").build();
-
-        try(Response response = HttpUtils.getHttpClient().join().newCall(request).execute()) {
-            String json = response.body() != null ? response.body().string() : null;
-
-            switch (response.code()) {
-                case 204:
-                case 404:
-                    throw new PlayerNotFoundException("Player not found");
-                case 429:
-                    throw new RateLimitException("Rate limit exceeded");
-                default:
-                    if (json == null) {
-                        throw new APIException("Failed to load profile: No response body");
-                    }
-            }
-
-            JsonElement jsonElement = JsonParser.parseString(json);
-            if (!jsonElement.isJsonObject()) {
-                throw new APIException("Failed to load profile: Invalid response");
-            }
-
-            JsonObject jsonObject = jsonElement.getAsJsonObject();
-            if (jsonObject.has("errorMessage")) {
-                throw new APIException("Failed to load profile: " + jsonObject.get("errorMessage").getAsString());
-            }
+    public static Profile fetchProfileFromUsername(String username) throws PlayerNotFoundException, RateLimitException, IOException {
+        return resolver.fetchProfile(username);
+    }
 
-            return (new Gson()).fromJson(jsonObject, Profile.class);
-        }
+    public static Profile fetchProfileFromUUID(UUID uuid) throws PlayerNotFoundException, RateLimitException, IOException {
+        return resolver.fetchProfile(uuid);
     }
 
-    public static Profile fetchProfileFromUsername(String username) throws PlayerNotFoundException, RateLimitException, IOException {
-        return fetchProfile(NAME_TO_UUID_API + username);
+    /**
+     * Fetches the full profile (including its textures) of the given player, at most once per hour.
+     */
+    public static CompletableFuture<Profile> getProfile(UUID uuid) {
+        return profileLoadingFutures.get(uuid);
     }
 
-    public static Profile fetchProfileFromUUID(UUID uuid) throws PlayerNotFoundException, RateLimitException, IOException {
-        return fetchProfile(UUID_TO_NAME_API + uuid.toString().replaceAll("-", ""));
+    /** Shares the data of a freshly fetched profile with everything else that is interested in it. */
+    private static void profileFetched(UUID uuid, Profile profile) {
+        nameLoadingFutures.put(profile.getName().toLowerCase(Locale.ROOT), CompletableFuture.completedFuture(uuid));
+        CachedAvatarImage.validate(uuid, profile);
     }
 
     public static CompletableFuture<String> getName(UUID uuid) {
-        return uuidLoadingFutures.computeIfAbsent(uuid, ignored1 -> CompletableFuture.supplyAsync(() -> {
-            try {
-                Profile profile = fetchProfileFromUUID(uuid);
-                nameLoadingFutures.put(profile.getName().toLowerCase(Locale.ROOT), CompletableFuture.completedFuture(uuid));
+        return load(uuidLoadingFutures, uuid, () -> {
+            String cachedName = resolver.getCachedName(uuid, true);
+            if (cachedName != null) {
+                if (resolver.getCachedName(uuid, false) == null) {
+                    // An outdated name is still better than none at all, so we use it until the refresh is done
+                    refreshName(uuid);
+                }
+                return CompletableFuture.completedFuture(cachedName);
+            }
+            return getProfile(uuid).handle((profile, e) -> {
+                if (e != null) {
+                    // Throw exception so future is completed with exception
+                    throw new CompletionException("Failed to load name", e);
+                }
                 return profile.getName();
-            } catch (Exception e) {
-                // Delete cache so we can try again next call
-                uuidLoadingFutures.remove(uuid);
+            });
+        });
+    }
 
-                // Throw exception so future is completed with exception
-                throw new CompletionException("Failed to load name", e);
-            }
-        }, asExecutor(Dispatchers.getIO())));
+    /**
+     * Looks up the current name of a player whose cached name has expired, once all lookups of players we know nothing
+     * about have been sent. Future calls to {@link #getName} will return the new name once it is known.
+     */
+    private static void refreshName(UUID uuid) {
+        resolver.refreshProfileAsync(uuid).thenAccept(profile -> {
+            uuidLoadingFutures.put(uuid, CompletableFuture.completedFuture(profile.getName()));
+            profileFetched(uuid, profile);
+        });
     }
 
     public static CompletableFuture<UUID> getUUID(String userName) {
-        return nameLoadingFutures.computeIfAbsent(userName.toLowerCase(Locale.ROOT), nameLower -> CompletableFuture.supplyAsync(() -> {
-            try {
-                Profile profile = fetchProfileFromUsername(nameLower);
+        String nameLower = userName.toLowerCase(Locale.ROOT);
+        return load(nameLoadingFutures, nameLower, () -> {
+            UUID cachedUuid = resolver.getCachedUuid(nameLower);
+            if (cachedUuid != null) {
+                return CompletableFuture.completedFuture(cachedUuid);
+            }
+            return resolver.lookupProfile(nameLower).handle((profile, e) -> {
+                if (e != null) {
+                    // Throw exception so future is completed with exception
+                    throw new CompletionException("Failed to load UUID", e);
+                }
                 UUID loadedUuid = UUID.fromString(
                     new StringBuilder(profile.getId())
                         .insert(20, '-')
@@ -114,17 +123,52 @@ public class UuidNameLookup {
                 );
                 uuidLoadingFutures.put(loadedUuid, CompletableFuture.completedFuture(profile.getName()));
                 return loadedUuid;
-            } catch (Exception e) {
-                // Delete cache so we can try again next call
-                nameLoadingFutures.remove(nameLower);
+            });
+        });
+    }
+
+    /**
+     * Returns the future stored in {@code futures} for the given key, starting a new load via {@code loader} if there is
+     * none yet. If the load fails, the future is removed again, so the next call will try again.
+     * The loader is called outside of any map operation because its future may already be complete (e.g. for players
+     * known not to exist), in which case its callbacks run immediately.
+     */
+    private static <K, V> CompletableFuture<V> load(
+        ConcurrentHashMap<K, CompletableFuture<V>> futures,
+        K key,
+        Supplier<CompletableFuture<V>> loader
+    ) {
+        CompletableFuture<V> existing = futures.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        CompletableFuture<V> future = new CompletableFuture<>();
+        existing = futures.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
+        }
 
-                // Throw exception so future is completed with exception
-                throw new CompletionException("Failed to load UUID", e);
+        CompletableFuture<V> loading;
+        try {
+            loading = loader.get();
+        } catch (Throwable e) {
+            loading = new CompletableFuture<>();
+            loading.completeExceptionally(e);
+        }
+        loading.whenComplete((value, e) -> {
+            if (e != null) {
+                // Delete cache so we can try again next call
+                futures.remove(key, future);
+                future.completeExceptionally(e);
+            } else {
+                future.complete(value);
             }
-        }, asExecutor(Dispatchers.getIO())));
+        });
+        return future;
     }
 
     public static void populate(String username, UUID uuid) {
+        resolver.store(uuid, username);
         uuidLoadingFutures.computeIfAbsent(uuid, k -> new CompletableFuture<>()).complete(username);
         nameLoadingFutures.computeIfAbsent(username.toLowerCase(Locale.ROOT), k -> new CompletableFuture<>()).complete(uuid);
     }
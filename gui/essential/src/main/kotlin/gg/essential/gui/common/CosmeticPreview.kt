@@ -28,14 +28,32 @@ import gg.essential.mod.cosmetics.CAPE_DISABLED_COSMETIC
 import gg.essential.mod.cosmetics.preview.PerspectiveCamera
 import gg.essential.mod.cosmetics.settings.CosmeticSetting
 import gg.essential.network.cosmetics.Cosmetic
+import gg.essential.universal.UMatrixStack
+import gg.essential.universal.UResolution
+import gg.essential.util.GlFrameBuffer
 import gg.essential.util.GuiEssentialPlatform.Companion.platform
+import java.awt.Color
 
-class CosmeticPreview(val cosmetic: Cosmetic, val settings: State<List<CosmeticSetting>> = mutableListStateOf()) : UIContainer() {
+class CosmeticPreview(
+    val cosmetic: Cosmetic,
+    val settings: State<List<CosmeticSetting>> = mutableListStateOf(),
+    /**
+     * If given, the player is only rendered live while this is `true`. At all other times, a snapshot of it, taken
+     * once it has finished loading and settled, and shared between all previews of the same cosmetic and settings, is drawn instead.
+     * Emote previews are animated and are therefore always rendered live.
+     */
+    private val live: State<Boolean>? = null,
+) : UIContainer() {
 
     private var loadingIcon = LoadingIcon(2.0)
     private val emulatedUI3DPlayer: UIPlayer
     private val emoteScheduler: EmoteScheduler?
 
+    private var loaded = false
+    private var loadedAt = 0L
+    private var snapshotKey: SnapshotKey? = null
+    private var snapshot: GlFrameBuffer? = null
+
     init {
         val profile = if (cosmetic.type.slot == CosmeticSlot.EMOTE) {
             null // A null profile will copy the player's profile so it will adapt to skin changes
@@ -77,14 +95,105 @@ class CosmeticPreview(val cosmetic: Cosmetic, val settings: State<List<CosmeticS
     inner class UpdateLoadingState : UpdateFunc {
         override fun invoke(dt: Float, dtMs: Int) {
             val wearablesManager = emulatedUI3DPlayer.wearablesManager
-            if (wearablesManager != null && wearablesManager.state.cosmetics.isNotEmpty()) {
+            // The state is only updated once all models (and their textures) have been loaded
+            if (wearablesManager != null && wearablesManager.models.keys.any { it.id == cosmetic.id }) {
                 removeUpdateFunc(this)
                 removeChild(loadingIcon)
                 // Replace the zero-size scissor effect we used while loading with a regularly sized one
                 emulatedUI3DPlayer.removeEffect<ScissorEffect>()
                 emulatedUI3DPlayer.enableEffect(ScissorEffect())
+                loaded = true
+                loadedAt = System.currentTimeMillis()
+            }
+        }
+    }
 
+    override fun draw(matrixStack: UMatrixStack) {
+        if (live == null || live.getUntracked() || !loaded || emoteScheduler != null || getWidth() < 1 || getHeight() < 1
+            || UResolution.windowWidth == 0 || UResolution.windowHeight == 0) {
+            super.draw(matrixStack)
+            return
+        }
+
+        val scale = UResolution.scaleFactor.toFloat()
+        val key = SnapshotKey(cosmetic, settings.getUntracked(), (getWidth() * scale).toInt(), (getHeight() * scale).toInt())
+        val snapshot = this.snapshot?.takeIf { key == snapshotKey && it.frameBuffer != -1 }
+            ?: Snapshots.get(key)
+            // The skin and any textures resolved at render time may still be loading, so we give them a moment to
+            // settle before freezing the preview
+            ?: if (System.currentTimeMillis() - loadedAt < SNAPSHOT_SETTLE_MS) {
+                super.draw(matrixStack)
+                return
+            } else {
+                takeSnapshot(key).also { Snapshots.put(key, it) }
             }
+        this.snapshot = snapshot
+        this.snapshotKey = key
+
+        beforeDraw(matrixStack)
+
+        snapshot.drawTexture(matrixStack, getLeft().toDouble(), getTop().toDouble(), getWidth().toDouble(), getHeight().toDouble(), Color.WHITE)
+
+        afterDraw(matrixStack)
+    }
+
+    private fun takeSnapshot(key: SnapshotKey): GlFrameBuffer {
+        val frameBuffer = GlFrameBuffer(key.width, key.height)
+        frameBuffer.clear()
+
+        // The scissor effect works in screen space, which does not apply while rendering into the frame buffer
+        emulatedUI3DPlayer.removeEffect<ScissorEffect>()
+        frameBuffer.useAsRenderTarget { stack, _, _ ->
+            val scale = UResolution.scaleFactor.toFloat()
+            stack.scale(scale, scale, 1f)
+            stack.translate(-getLeft(), -getTop(), 0f)
+            emulatedUI3DPlayer.draw(stack)
         }
+        emulatedUI3DPlayer.enableEffect(ScissorEffect())
+
+        return frameBuffer
+    }
+
+    private data class SnapshotKey(
+        val cosmetic: Cosmetic,
+        val settings: List<CosmeticSetting>,
+        val width: Int,
+        val height: Int,
+    )
+
+    /**
+     * Snapshots shared between all previews, so scrolling back to a previously visible item does not require rendering
+     * it again.
+     * The least recently used ones are deleted once there are more than [MAX_SNAPSHOTS], and all of them are deleted
+     * via [clearSnapshots] once the Wardrobe is closed.
+     */
+    private object Snapshots {
+        private const val MAX_SNAPSHOTS = 128
+
+        private val snapshots = object : LinkedHashMap<SnapshotKey, GlFrameBuffer>(16, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<SnapshotKey, GlFrameBuffer>): Boolean {
+                if (size <= MAX_SNAPSHOTS) return false
+                eldest.value.delete()
+                return true
+            }
+        }
+
+        fun get(key: SnapshotKey): GlFrameBuffer? = snapshots[key]
+
+        fun put(key: SnapshotKey, frameBuffer: GlFrameBuffer) {
+            snapshots.put(key, frameBuffer)?.delete()
+        }
+
+        fun clear() {
+            snapshots.values.forEach { it.delete() }
+            snapshots.clear()
+        }
+    }
+
+    companion object {
+        private const val SNAPSHOT_SETTLE_MS = 500L
+
+        /** Deletes all snapshots shared between previews. Must be called on the main thread. */
+        fun clearSnapshots() = Snapshots.clear()
     }
 }
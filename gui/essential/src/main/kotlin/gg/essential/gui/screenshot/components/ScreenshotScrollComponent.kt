@@ -25,6 +25,7 @@ import gg.essential.universal.UMouse
 import java.awt.Color
 import java.util.concurrent.CopyOnWriteArrayList
 import kotlin.math.abs
+import kotlin.math.exp
 
 /**
  * Based on Elementa's scroll component but modified to add a gap of the first [topGap] pixels on top of the scroll
@@ -69,6 +70,15 @@ class ScreenshotScrollComponent @JvmOverloads constructor(
     var verticalOffset = innerPadding - topGap
         private set
 
+    /**
+     * Smoothed speed, in pixels per second, at which the content is currently being scrolled vertically.
+     * Positive values indicate that the user is scrolling towards the end of the content.
+     */
+    var verticalVelocity = 0f
+        private set
+    private var lastVelocitySampleOffset = verticalOffset
+    private var lastVelocitySampleTime = -1L
+
 
     private var horizontalScrollBarGrip: UIComponent? = null
     private var horizontalHideScrollWhenUseless = false
@@ -125,6 +135,8 @@ class ScreenshotScrollComponent @JvmOverloads constructor(
     private var lastActualHeight = 0f
 
     override fun draw(matrixStack: UMatrixStack) {
+        updateVelocity()
+
         val actualWidth = calculateActualWidth()
         val actualHeight = calculateActualHeight()
         if (actualWidth != lastActualWidth || actualHeight != lastActualHeight) {
@@ -166,6 +178,20 @@ class ScreenshotScrollComponent @JvmOverloads constructor(
         super.draw(matrixStack)
     }
 
+    private fun updateVelocity() {
+        val now = System.nanoTime()
+        if (lastVelocitySampleTime != -1L) {
+            val dt = (now - lastVelocitySampleTime) / 1_000_000_000f
+            if (dt <= 0f) return
+            val instantVelocity = (lastVelocitySampleOffset - verticalOffset) / dt
+            // Exponential smoothing independent of the frame rate, so individual scroll wheel ticks do not spike it
+            val alpha = 1f - exp(-dt / VELOCITY_SMOOTHING_SECONDS)
+            verticalVelocity += (instantVelocity - verticalVelocity) * alpha
+        }
+        lastVelocitySampleOffset = verticalOffset
+        lastVelocitySampleTime = now
+    }
+
     override fun afterInitialization() {
         super.afterInitialization()
 
@@ -705,6 +731,7 @@ class ScreenshotScrollComponent @JvmOverloads constructor(
     }
 
     companion object {
+        private const val VELOCITY_SMOOTHING_SECONDS = 0.15f
 
         fun getScrollImage(): UIImage {
             return UIImage.ofResourceCached("/vertical-scroll.png")
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.gui.screenshot.downsampling
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufAllocator
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.util.zip.InflaterInputStream
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Decodes PNG images row by row while box-filtering them down by an integer factor, so an image which is only needed
+ * as a thumbnail never has to exist at its full size in memory.
+ * Peak memory use is two source rows plus the (reduced) output image.
+ *
+ * The image is only reduced to about twice the requested size, so a proper filter (e.g.
+ * [gg.essential.gui.screenshot.providers.PostProcessWindowedImageProvider.bicubicFilter]) can take care of the rest
+ * without noticeable loss in quality compared to filtering the full-size image.
+ *
+ * Only the formats we write ourselves (8-bit RGB/RGBA, non-interlaced) are supported. For anything else, or if there
+ * would be no meaningful reduction in size, `null` is returned and the caller should fall back to a regular decoder.
+ */
+object StreamingPngDownsampler {
+    private val SIGNATURE = byteArrayOf(-119, 'P'.code.toByte(), 'N'.code.toByte(), 'G'.code.toByte(), 13, 10, 26, 10)
+    private const val IHDR = 0x49484452
+    private const val IDAT = 0x49444154
+
+    private const val COLOR_TYPE_RGB = 2
+    private const val COLOR_TYPE_RGBA = 6
+
+    @Throws(IOException::class)
+    fun decode(input: InputStream, maxWidth: Int, maxHeight: Int, allocator: ByteBufAllocator): PixelBuffer? {
+        val stream = DataInputStream(input.buffered())
+
+        val signature = ByteArray(SIGNATURE.size)
+        stream.readFully(signature)
+        if (!signature.contentEquals(SIGNATURE)) return null
+
+        // IHDR is required to be the first chunk
+        if (stream.readInt() != 13 || stream.readInt() != IHDR) return null
+        val width = stream.readInt()
+        val height = stream.readInt()
+        val bitDepth = stream.readUnsignedByte()
+        val colorType = stream.readUnsignedByte()
+        stream.readUnsignedByte() // compression method, there is only one
+        stream.readUnsignedByte() // filter method, there is only one
+        val interlaceMethod = stream.readUnsignedByte()
+        stream.readInt() // crc
+
+        val channels = when (colorType) {
+            COLOR_TYPE_RGB -> 3
+            COLOR_TYPE_RGBA -> 4
+            else -> return null
+        }
+        if (bitDepth != 8 || interlaceMethod != 0 || width <= 0 || height <= 0) return null
+
+        // Reduce to no less than twice the target size so the final filter still has enough data to work with
+        val factor = (max(width.toFloat() / maxWidth, height.toFloat() / maxHeight) / 2).toInt()
+        if (factor < 2) return null
+
+        while (true) {
+            val length = stream.readInt()
+            val type = stream.readInt()
+            if (type == IDAT) {
+                return InflaterInputStream(IdatInputStream(stream, length)).use { inflated ->
+                    downsample(DataInputStream(inflated), width, height, channels, factor, allocator)
+                }
+            }
+            stream.skipFully(length + 4L) // chunk data and crc
+        }
+    }
+
+    private fun downsample(
+        rows: DataInputStream,
+        width: Int,
+        height: Int,
+        channels: Int,
+        factor: Int,
+        allocator: ByteBufAllocator,
+    ): PixelBuffer {
+        val stride = width * channels
+        var previous = ByteArray(stride)
+        var current = ByteArray(stride)
+
+        val outWidth = (width + factor - 1) / factor
+        val outHeight = (height + factor - 1) / factor
+        val sums = IntArray(outWidth * channels)
+
+        val output = allocator.directBuffer(outWidth * outHeight * channels)
+        try {
+            var rowsInBand = 0
+            for (y in 0 until height) {
+                val filter = rows.readUnsignedByte()
+                rows.readFully(current)
+                unfilter(filter, current, previous, channels)
+
+                for (outX in 0 until outWidth) {
+                    val start = outX * factor
+                    val end = min(start + factor, width)
+                    for (c in 0 until channels) {
+                        var sum = 0
+                        var i = start * channels + c
+                        for (x in start until end) {
+                            sum += current[i].toInt() and 0xff
+                            i += channels
+                        }
+                        sums[outX * channels + c] += sum
+                    }
+                }
+
+                rowsInBand++
+                if (rowsInBand == factor || y == height - 1) {
+                    writeAverages(output, sums, rowsInBand, width, factor, channels)
+                    sums.fill(0)
+                    rowsInBand = 0
+                }
+
+                val tmp = previous
+                previous = current
+                current = tmp
+            }
+            return BufferBackedImage(outWidth, outHeight, output)
+        } catch (e: Throwable) {
+            output.release()
+            throw e
+        }
+    }
+
+    private fun writeAverages(output: ByteBuf, sums: IntArray, rows: Int, width: Int, factor: Int, channels: Int) {
+        for (outX in 0 until sums.size / channels) {
+            val count = min(factor, width - outX * factor) * rows
+            for (c in 0 until channels) {
+                output.writeByte((sums[outX * channels + c] + count / 2) / count)
+            }
+        }
+    }
+
+    private fun unfilter(filter: Int, current: ByteArray, previous: ByteArray, bpp: Int) {
+        when (filter) {
+            0 -> {}
+            1 -> for (i in bpp until current.size) {
+                current[i] = (current[i] + current[i - bpp]).toByte()
+            }
+            2 -> for (i in current.indices) {
+                current[i] = (current[i] + previous[i]).toByte()
+            }
+            3 -> for (i in current.indices) {
+                val left = if (i >= bpp) current[i - bpp].toInt() and 0xff else 0
+                val up = previous[i].toInt() and 0xff
+                current[i] = (current[i] + ((left + up) shr 1)).toByte()
+            }
+            4 -> for (i in current.indices) {
+                val left = if (i >= bpp) current[i - bpp].toInt() and 0xff else 0
+                val up = previous[i].toInt() and 0xff
+                val upLeft = if (i >= bpp) previous[i - bpp].toInt() and 0xff else 0
+                current[i] = (current[i] + paeth(left, up, upLeft)).toByte()
+            }
+            else -> throw IOException("Invalid PNG filter type $filter")
+        }
+    }
+
+    private fun paeth(a: Int, b: Int, c: Int): Int {
+        val p = a + b - c
+        val pa = abs(p - a)
+        val pb = abs(p - b)
+        val pc = abs(p - c)
+        return if (pa <= pb && pa <= pc) a else if (pb <= pc) b else c
+    }
+
+    private fun DataInputStream.skipFully(n: Long) {
+        var remaining = n
+        while (remaining > 0) {
+            val skipped = skip(remaining)
+            if (skipped <= 0) {
+                if (read() == -1) throw EOFException()
+                remaining--
+            } else {
+                remaining -= skipped
+            }
+        }
+    }
+
+    /** Presents the data of consecutive IDAT chunks as a single stream. */
+    private class IdatInputStream(private val stream: DataInputStream, private var remaining: Int) : InputStream() {
+        private var ended = false
+
+        private fun nextChunk(): Boolean {
+            while (remaining == 0) {
+                if (ended) return false
+                stream.readInt() // crc
+                val length = stream.readInt()
+                if (stream.readInt() != IDAT) {
+                    ended = true
+                    return false
+                }
+                remaining = length
+            }
+            return true
+        }
+
+        override fun read(): Int {
+            if (!nextChunk()) return -1
+            val read = stream.read()
+            if (read == -1) throw EOFException()
+            remaining--
+            return read
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) return 0
+            if (!nextChunk()) return -1
+            val read = stream.read(b, off, min(len, remaining))
+            if (read == -1) throw EOFException()
+            remaining -= read
+            return read
+        }
+    }
+}
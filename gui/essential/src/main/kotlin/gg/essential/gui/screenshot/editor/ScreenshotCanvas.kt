@@ -128,8 +128,13 @@ class ScreenshotCanvas(val screenshot: State<UIdentifier?>) : UIContainer() {
 
     /**
      * NanoVG based editing overlay which handles drawing all edits as well as drawing the parts of the screenshot retained from cropping. [UINanoVG]
+     *
+     * Strokes which have been completed are drawn into a separate cached layer, which is only re-drawn when the set of
+     * completed strokes changes (new stroke, undo, redo, reset), so while drawing only the stroke that is currently
+     * being drawn has to be rendered again.
+     * If [layered] is false, all strokes are rendered by this component itself instead (e.g. for exporting).
      */
-    open inner class VectorEditingOverlay(val image: State<UIdentifier?>) : UINanoVG() {
+    open inner class VectorEditingOverlay(val image: State<UIdentifier?>, private val layered: Boolean = true) : UINanoVG() {
         private val history: Stack<Change> = Stack()
         private val future: Stack<Change> = Stack()
         private val screenshotImage = ScreenshotImage(image)
@@ -138,9 +143,22 @@ class ScreenshotCanvas(val screenshot: State<UIdentifier?>) : UIContainer() {
         val undoEnabled = BasicState(false)
         val redoEnabled = BasicState(false)
 
+        /** The stroke which is currently being drawn, if any. Not part of the [committedStrokes] layer. */
+        private var activeStroke: VectorStroke? = null
+
+        private val committedStrokes = object : UINanoVG() {
+            override fun renderVG(matrixStack: UMatrixStack, vg: NanoVG, width: Float, height: Float) {
+                history.forEach { change ->
+                    if (change is VectorStroke && change !== activeStroke) {
+                        change.render(vg, width, height, scale)
+                    }
+                }
+            }
+        }
+
         private val weakImage = image.weak()
         init {
-            weakImage.onSetValue { markDirty() }
+            weakImage.onSetValue { markStrokesDirty() }
         }
 
         /**
@@ -151,30 +169,76 @@ class ScreenshotCanvas(val screenshot: State<UIdentifier?>) : UIContainer() {
             redoEnabled.set(false)
             history.clear()
             future.clear()
-            markDirty()
+            activeStroke = null
+            markStrokesDirty()
         }
 
-        constructor(veo: VectorEditingOverlay) : this(veo.image) {
+        constructor(veo: VectorEditingOverlay) : this(veo.image, layered = false) {
             this.history.addAll(veo.history)
             this.future.addAll(veo.future)
             undoEnabled.set(veo.undoEnabled.get())
             redoEnabled.set(veo.redoEnabled.get())
         }
 
+        /**
+         * Marks both the cached layer of completed strokes and the layer of the current stroke as needing to be
+         * re-drawn.
+         */
+        fun markStrokesDirty() {
+            committedStrokes.markDirty()
+            markDirty()
+        }
+
+        override fun delete() {
+            committedStrokes.delete()
+            super.delete()
+        }
+
         override fun draw(matrixStack: UMatrixStack) {
             matrixStack.push()
             matrixStack.translate(getLeft(), getTop(), 0f)
             screenshotImage.renderImage(matrixStack, Color.WHITE, getWidth().toDouble(), getHeight().toDouble())
             matrixStack.pop()
+            if (layered) {
+                committedStrokes.drawImage(
+                    matrixStack,
+                    getLeft().toDouble(),
+                    getTop().toDouble(),
+                    getWidth().toDouble(),
+                    getHeight().toDouble(),
+                    Color.WHITE,
+                )
+            }
             super.draw(matrixStack)
         }
 
         override fun renderVG(matrixStack: UMatrixStack, vg: NanoVG, width: Float, height: Float) {
-            history.filterIsInstance<VectorStroke>().forEach { vs ->
-                vs.render(vg, width, height, scale)
+            if (layered) {
+                activeStroke?.render(vg, width, height, scale)
+            } else {
+                history.filterIsInstance<VectorStroke>().forEach { vs ->
+                    vs.render(vg, width, height, scale)
+                }
             }
         }
 
+        /**
+         * Adds the given stroke to the history and draws it live until [endStroke] is called.
+         */
+        fun beginStroke(stroke: VectorStroke) = apply {
+            pushChange(stroke)
+            activeStroke = stroke
+            markStrokesDirty()
+        }
+
+        /**
+         * Moves the current stroke into the cached layer of completed strokes.
+         */
+        fun endStroke() = apply {
+            activeStroke = null
+            markStrokesDirty()
+        }
+
         /**
          * Adds a new change to the history stack
          *
@@ -185,7 +249,7 @@ class ScreenshotCanvas(val screenshot: State<UIdentifier?>) : UIContainer() {
         fun pushChange(change: Change) = apply {
             future.clear()
             history.push(change)
-            markDirty()
+            markStrokesDirty()
             undoEnabled.set(true)
             redoEnabled.set(false)
         }
@@ -198,6 +262,8 @@ class ScreenshotCanvas(val screenshot: State<UIdentifier?>) : UIContainer() {
             if (history.empty()) return@apply
             redoEnabled.set(true)
             future.push(history.pop().also { it.undo(this@ScreenshotCanvas) })
+            activeStroke = null
+            markStrokesDirty()
             undoEnabled.set(!history.isEmpty())
         }
 
@@ -208,6 +274,7 @@ class ScreenshotCanvas(val screenshot: State<UIdentifier?>) : UIContainer() {
         fun redo() = apply {
             if (future.empty()) return@apply
             history.push(future.pop().also { it.redo(this@ScreenshotCanvas) })
+            markStrokesDirty()
             undoEnabled.set(true)
             redoEnabled.set(!future.isEmpty())
         }
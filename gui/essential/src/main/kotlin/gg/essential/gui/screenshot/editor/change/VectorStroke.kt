@@ -25,10 +25,10 @@ abstract class VectorStroke(val editableScreenshot: ScreenshotCanvas, val color:
     abstract fun render(vg: NanoVG, width: Float, height: Float, scale: Float)
 
     override fun undo(canvas: ScreenshotCanvas) {
-        canvas.vectorEditingOverlay.markDirty()
+        canvas.vectorEditingOverlay.markStrokesDirty()
     }
 
     override fun redo(canvas: ScreenshotCanvas) {
-        canvas.vectorEditingOverlay.markDirty()
+        canvas.vectorEditingOverlay.markStrokesDirty()
     }
 }
\ No newline at end of file
@@ -34,6 +34,9 @@ class PenTool(editableScreenshot: ScreenshotCanvas) : Tool(editableScreenshot) {
     // Stores the stroke that is currently being drawn
     var currentVectorStroke: PenVectorStroke? = null
 
+    // Decimates the points of the stroke that is currently being drawn
+    private val simplifier = StrokeSimplifier()
+
     override fun enable() {
         editableScreenshot.onDraw = { mouseX, mouseY, mouseButton ->
             val relativeX = (mouseX - getLeft()).coerceIn(0f, getWidth())
@@ -51,7 +54,14 @@ class PenTool(editableScreenshot: ScreenshotCanvas) : Tool(editableScreenshot) {
                         if (relativeX != previousMouseX || relativeY != previousMouseY) {
                             // add a line to draw from the previous mouse pointer to the current
                             // this mimics the function of a "pen"
-                            currentVectorStroke?.list?.add(relativeX / getWidth() to relativeY / getHeight())
+                            currentVectorStroke?.let { stroke ->
+                                val point = relativeX / getWidth() to relativeY / getHeight()
+                                when (simplifier.add(relativeX, relativeY)) {
+                                    StrokeSimplifier.Result.APPEND -> stroke.list.add(point)
+                                    StrokeSimplifier.Result.REPLACE_LAST -> stroke.list[stroke.list.lastIndex] = point
+                                    StrokeSimplifier.Result.SKIP -> {}
+                                }
+                            }
                         }
                     }
                     // set previous mouse pointers to the current mouse point
@@ -64,11 +74,16 @@ class PenTool(editableScreenshot: ScreenshotCanvas) : Tool(editableScreenshot) {
             if (it.mouseButton != 0) {
                 return@onMouseClick
             }
-            currentVectorStroke = PenVectorStroke(color, width).also { editableScreenshot.vectorEditingOverlay.pushChange(it) }
+            simplifier.finish()
+            currentVectorStroke = PenVectorStroke(color, width).also { editableScreenshot.vectorEditingOverlay.beginStroke(it) }
         }
         editableScreenshot.screenshotDisplay.onMouseRelease {
             previousMouseX = -1f
             previousMouseY = -1f
+            currentVectorStroke?.let { stroke ->
+                simplifier.finish()?.let { (x, y) -> stroke.list.add(x / getWidth() to y / getHeight()) }
+                editableScreenshot.vectorEditingOverlay.endStroke()
+            }
             currentVectorStroke = null
         }
     }
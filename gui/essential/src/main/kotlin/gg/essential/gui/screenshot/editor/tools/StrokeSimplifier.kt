@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.gui.screenshot.editor.tools
+
+import kotlin.math.cos
+import kotlin.math.sqrt
+
+/**
+ * Decimates the points of a freehand stroke as they come in, so long strokes do not end up with a point for every
+ * single mouse event:
+ * - points closer than [minDistance] to the last kept point are skipped
+ * - points which continue in (almost) the same direction as the current segment, deviating by no more than
+ *   [maxAngleDegrees], move the end of that segment instead of starting a new one
+ *
+ * This only decides what to do with each point, the caller applies that decision to wherever the points are stored.
+ * Distances are in whatever coordinate space the points are given in.
+ */
+class StrokeSimplifier(
+    private val minDistance: Float = 1f,
+    maxAngleDegrees: Float = 4f,
+) {
+    enum class Result {
+        /** The point should be appended to the stroke. */
+        APPEND,
+        /** The point should replace the last point of the stroke. */
+        REPLACE_LAST,
+        /** The point should not be stored (yet), see [finish]. */
+        SKIP,
+    }
+
+    private val minCosine = cos(Math.toRadians(maxAngleDegrees.toDouble())).toFloat()
+
+    private var count = 0
+    private var lastX = 0f
+    private var lastY = 0f
+    /** Start of the current segment. */
+    private var anchorX = 0f
+    private var anchorY = 0f
+    /** Direction of the current segment when it was started, normalized. */
+    private var directionX = 0f
+    private var directionY = 0f
+
+    private var skipped: Pair<Float, Float>? = null
+
+    fun add(x: Float, y: Float): Result {
+        if (count == 0) {
+            keep(x, y)
+            return Result.APPEND
+        }
+
+        val dx = x - lastX
+        val dy = y - lastY
+        if (dx * dx + dy * dy < minDistance * minDistance) {
+            skipped = Pair(x, y)
+            return Result.SKIP
+        }
+        skipped = null
+
+        if (count >= 2) {
+            // Compare against the direction the segment started out with, so a slow curve cannot drift away from its
+            // segment one small step at a time
+            val sx = x - anchorX
+            val sy = y - anchorY
+            val length = sqrt(sx * sx + sy * sy)
+            if (length > 0 && (sx * directionX + sy * directionY) / length >= minCosine) {
+                lastX = x
+                lastY = y
+                return Result.REPLACE_LAST
+            }
+        }
+
+        keep(x, y)
+        return Result.APPEND
+    }
+
+    /**
+     * Ends the stroke, returning the last point if it was skipped, so the stroke still ends exactly where the input
+     * did.
+     */
+    fun finish(): Pair<Float, Float>? = skipped.also {
+        count = 0
+        skipped = null
+    }
+
+    private fun keep(x: Float, y: Float) {
+        if (count > 0) {
+            val dx = x - lastX
+            val dy = y - lastY
+            val length = sqrt(dx * dx + dy * dy)
+            anchorX = lastX
+            anchorY = lastY
+            directionX = dx / length
+            directionY = dy / length
+        }
+        lastX = x
+        lastY = y
+        count++
+    }
+}
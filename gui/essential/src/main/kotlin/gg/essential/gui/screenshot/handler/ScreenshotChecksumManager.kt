@@ -13,46 +13,54 @@ package gg.essential.gui.screenshot.handler
 
 import gg.essential.lib.gson.Gson
 import gg.essential.lib.gson.JsonSyntaxException
-import gg.essential.vigilance.impl.nightconfig.core.utils.ObservedMap
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
 import org.apache.commons.codec.digest.DigestUtils
 import java.io.File
 import java.io.IOException
 import java.nio.file.Path
 
 /**
- * Manages the file -> checksum relationship for screenshot metadata
+ * Manages the file -> checksum relationship for screenshot metadata.
+ *
+ * This doubles as a persistent catalog of the screenshot folder: it is loaded in a single read at startup, so the
+ * known screenshots are available without listing the folder. Entries loaded from disk are only trusted once they
+ * have been checked against the file (either on first access, or in bulk via [reconcile]); after that the catalog is
+ * kept up to date by the filesystem events processed by the screenshot manager and no longer touches the file.
  */
 class ScreenshotChecksumManager(
     private val screenshotFolder: File,
     private val cacheFile: File,
 ) {
     private val gson = Gson()
-    private var persistChanges = true
-    private val entries = ObservedMap(mutableMapOf<ChecksumSnapshot, String>()) {
-        saveState()
-    }
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val entries = mutableMapOf<String, ChecksumSnapshot>()
+    private val checksums = mutableMapOf<ChecksumSnapshot, String>()
+
+    /** Names of the entries which are known to match the current state of their file. */
+    private val verified = mutableSetOf<String>()
+    private var saveScheduled = false
 
     init {
         synchronized(entries) {
             if (cacheFile.exists()) {
                 try {
-                    // Initial population shouldn't trigger a save to disk
-                    persistChanges = false
-
                     val data = gson.fromJson(
                         cacheFile.readText(),
                         Array<SerializedChecksum>::class.java
                     )
                     if (data != null) {
                         for (entry in data) {
-                            entries[entry.snapshot] = entry.checksum
+                            entries[entry.snapshot.name] = entry.snapshot
+                            checksums[entry.snapshot] = entry.checksum
                         }
                     }
                 } catch (e: JsonSyntaxException) {
                     // The file is corrupted, let's delete it and let the cache rebuild.
                     cacheFile.delete()
-                } finally {
-                    persistChanges = true
                 }
             }
         }
@@ -63,8 +71,9 @@ class ScreenshotChecksumManager(
      */
     operator fun set(file: File, checksum: String) {
         synchronized(entries) {
-            entries[getChecksumSnapshot(file)] = checksum
+            put(getChecksumSnapshot(file), checksum)
         }
+        scheduleSave()
     }
 
     /**
@@ -72,18 +81,72 @@ class ScreenshotChecksumManager(
      */
     operator fun get(file: File): String? {
         synchronized(entries) {
+            val existing = entries[file.name]
+            if (existing != null && file.name in verified) {
+                return checksums[existing]
+            }
+
             val checksumSnapshot = getChecksumSnapshot(file)
+            if (existing == checksumSnapshot) {
+                verified.add(file.name)
+                return checksums[existing]
+            }
+
+            val fileChecksum = readFileChecksum(file) ?: return null
+            put(checksumSnapshot, fileChecksum)
+            scheduleSave()
+            return fileChecksum
+        }
+    }
 
-            // computeIfAbsent always initiates the callback, even if the map is not updated
-            val get = entries[checksumSnapshot]
-            return if (get != null) {
-                get
-            } else {
-                val fileChecksum = readFileChecksum(file)
-                fileChecksum?.also {
-                    entries[checksumSnapshot] = fileChecksum
+    /**
+     * Returns the names of all files in the catalog, as of the end of the last session unless they have been
+     * [reconciled][reconcile] since.
+     */
+    fun getFileNames(): Set<String> {
+        synchronized(entries) {
+            return entries.keys.toSet()
+        }
+    }
+
+    /**
+     * Checks the catalog against a full listing of the screenshot folder.
+     * Entries whose file has changed are dropped (their checksum will be computed again when it is next needed), and
+     * entries whose file no longer exists are removed.
+     *
+     * @return The names of the files which no longer exist
+     */
+    fun reconcile(files: List<File>): Set<String> {
+        // Stat the files before grabbing the lock, so we don't block lookups for the whole walk
+        val snapshots = files.associate { it.name to getChecksumSnapshot(it) }
+        val removed = synchronized(entries) {
+            val removed = entries.keys - snapshots.keys
+            for (name in removed) {
+                checksums.remove(entries.remove(name))
+                verified.remove(name)
+            }
+            for ((name, snapshot) in snapshots) {
+                val existing = entries[name] ?: continue
+                if (existing == snapshot) {
+                    verified.add(name)
+                } else {
+                    checksums.remove(entries.remove(name))
+                    verified.remove(name)
                 }
             }
+            removed
+        }
+        scheduleSave()
+        return removed
+    }
+
+    /**
+     * Marks the entry of the given file as needing to be checked against the file again, e.g. because it was
+     * (re-)created.
+     */
+    fun invalidate(name: String) {
+        synchronized(entries) {
+            verified.remove(name)
         }
     }
 
@@ -92,7 +155,7 @@ class ScreenshotChecksumManager(
      */
     fun getPathsForChecksum(checksum: String): List<Path> {
         synchronized(entries) {
-            return entries.entries.filter {
+            return checksums.entries.filter {
                 it.value == checksum
             }.map {
                 File(screenshotFolder, it.key.name).toPath()
@@ -104,25 +167,48 @@ class ScreenshotChecksumManager(
      * Removes the item with the supplied name and returns the checksum, if present.
      */
     fun remove(name: String): String? {
+        val checksum = synchronized(entries) {
+            verified.remove(name)
+            val snapshot = entries.remove(name) ?: return null
+            checksums.remove(snapshot)
+        }
+        scheduleSave()
+        return checksum
+    }
+
+    private fun put(snapshot: ChecksumSnapshot, checksum: String) {
+        entries.put(snapshot.name, snapshot)?.let { checksums.remove(it) }
+        checksums[snapshot] = checksum
+        verified.add(snapshot.name)
+    }
+
+    /**
+     * Writes the catalog to disk shortly after it was changed, so a burst of changes (e.g. when it is first built)
+     * only results in a single write.
+     */
+    private fun scheduleSave() {
         synchronized(entries) {
-            return entries.entries.firstOrNull {
-                it.key.name == name
-            }?.let {
-                entries.remove(it.key)
-                it.value
+            if (saveScheduled) {
+                return
             }
+            saveScheduled = true
+        }
+        scope.launch {
+            delay(SAVE_DELAY_MS)
+            saveState()
         }
     }
 
     private fun saveState() {
-        if (!persistChanges) {
-            return
+        val json = synchronized(entries) {
+            saveScheduled = false
+            gson.toJson(checksums.map { SerializedChecksum(it.value, it.key) })
         }
 
-        synchronized(entries) {
-            cacheFile.writeText(
-                gson.toJson(entries.map { SerializedChecksum(it.value, it.key) }),
-            )
+        try {
+            cacheFile.writeText(json)
+        } catch (e: IOException) {
+            e.printStackTrace()
         }
     }
 
@@ -146,10 +232,14 @@ class ScreenshotChecksumManager(
      * Deletes the checksum relationship from the supplied file
      */
     fun delete(file: File) {
-        entries.remove(getChecksumSnapshot(file))
+        remove(file.name)
+    }
+
+    companion object {
+        private const val SAVE_DELAY_MS = 1000L
     }
 }
 
 private data class SerializedChecksum(val checksum: String, val snapshot: ChecksumSnapshot)
 
-private data class ChecksumSnapshot(val name: String, val lastModified: Long, val size: Long)
\ No newline at end of file
+private data class ChecksumSnapshot(val name: String, val lastModified: Long, val size: Long)
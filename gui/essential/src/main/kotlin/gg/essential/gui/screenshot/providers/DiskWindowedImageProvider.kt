@@ -17,17 +17,24 @@ import gg.essential.gui.screenshot.ScreenshotId
 import gg.essential.gui.screenshot.downsampling.BufferBackedImage
 import gg.essential.gui.screenshot.downsampling.ErrorImage
 import gg.essential.gui.screenshot.downsampling.PixelBuffer
+import gg.essential.gui.screenshot.downsampling.StreamingPngDownsampler
 import gg.essential.util.lwjgl3.api.NativeImageReader
 import io.netty.buffer.ByteBufAllocator
 import io.netty.buffer.Unpooled
 import java.io.IOException
+import java.io.InputStream
+import java.nio.file.Files
 
 /**
  * Provide method is blocking and waits for file system
+ *
+ * If a [targetResolution] is given, images are, where possible, decoded straight to a reduced size (still larger than
+ * the target) via [StreamingPngDownsampler] instead of being fully decoded, see there for details.
  */
 class DiskWindowedImageProvider(
     private val nativeImageReader: NativeImageReader,
     private val allocator: ByteBufAllocator,
+    private val targetResolution: Pair<Int, Int>? = null,
 ) : WindowedImageProvider {
 
 
@@ -51,10 +58,14 @@ class DiskWindowedImageProvider(
         try {
             val imageData =
                 when (id) {
-                    is LocalScreenshot -> nativeImageReader.getImageData(id.path, allocator)
+                    is LocalScreenshot -> {
+                        decodeToSize { Files.newInputStream(id.path) }?.let { return it }
+                        nativeImageReader.getImageData(id.path, allocator)
+                    }
                     is RemoteScreenshot -> {
-                        val bytes = Unpooled.wrappedBuffer(id.open().use { it.readBytes() })
-                        nativeImageReader.getImageData(bytes, allocator)
+                        val bytes = id.open().use { it.readBytes() }
+                        decodeToSize { bytes.inputStream() }?.let { return it }
+                        nativeImageReader.getImageData(Unpooled.wrappedBuffer(bytes), allocator)
                     }
                 }
             return BufferBackedImage(imageData)
@@ -63,4 +74,14 @@ class DiskWindowedImageProvider(
         }
         return ErrorImage()
     }
+
+    private fun decodeToSize(open: () -> InputStream): PixelBuffer? {
+        val (width, height) = targetResolution ?: return null
+        return try {
+            open().use { StreamingPngDownsampler.decode(it, width, height, allocator) }
+        } catch (e: IOException) {
+            // The regular decoder may be more lenient, and if the image really is broken, it will report that for us
+            null
+        }
+    }
 }
\ No newline at end of file
@@ -59,7 +59,7 @@ class FileCachedWindowedImageProvider(
                     if (precomputeOnly) {
                         continue
                     }
-                    val read = read(cachePath)
+                    val read = read(cachePath, nativeImageReader, alloc)
                     if (read != null) {
                         providedImages[sourcePath] = read
                         continue
@@ -90,35 +90,6 @@ class FileCachedWindowedImageProvider(
         return providedImages
     }
 
-    private fun read(path: Path): PixelBuffer? {
-        //This will never return null unless an error occurs reading
-        var bytes: ByteBuf? = null
-
-        locks.compute(path.toAbsolutePath().toString()) { _, _ ->
-            // sync needed because if file is in the middle of a write and we try to read it, it
-            // will read an incomplete file and not parse
-            try {
-                FileChannel.open(path).use { fileChannel ->
-                    val size = fileChannel.size().toInt()
-                    val buf = Unpooled.directBuffer(size).also { bytes = it }
-                    buf.writeBytes(fileChannel, size)
-                }
-            } catch (e: IOException) {
-                LOGGER.warn("Failed to read cached image from $path", e)
-            }
-            null
-        }
-
-        return try {
-            BufferBackedImage(nativeImageReader.getImageData(bytes ?: return null, alloc))
-        } catch (e: IOException) {
-            LOGGER.warn("Failed to parse cached image from $path", e)
-            null
-        } finally {
-            bytes?.release()
-        }
-    }
-
     private fun save(path: Path, image: PixelBuffer) {
         // sync needed because if file is in the middle of a write and we try to read it, it will
         // read an incomplete file and not parse
@@ -136,6 +107,38 @@ class FileCachedWindowedImageProvider(
 
         private val locks = ConcurrentHashMap<String, Nothing>()
 
+        /**
+         * Reads a previously cached image from [path], returning `null` if it could not be read.
+         */
+        fun read(path: Path, nativeImageReader: NativeImageReader, alloc: ByteBufAllocator): PixelBuffer? {
+            //This will never return null unless an error occurs reading
+            var bytes: ByteBuf? = null
+
+            locks.compute(path.toAbsolutePath().toString()) { _, _ ->
+                // sync needed because if file is in the middle of a write and we try to read it, it
+                // will read an incomplete file and not parse
+                try {
+                    FileChannel.open(path).use { fileChannel ->
+                        val size = fileChannel.size().toInt()
+                        val buf = Unpooled.directBuffer(size).also { bytes = it }
+                        buf.writeBytes(fileChannel, size)
+                    }
+                } catch (e: IOException) {
+                    LOGGER.warn("Failed to read cached image from $path", e)
+                }
+                null
+            }
+
+            return try {
+                BufferBackedImage(nativeImageReader.getImageData(bytes ?: return null, alloc))
+            } catch (e: IOException) {
+                LOGGER.warn("Failed to parse cached image from $path", e)
+                null
+            } finally {
+                bytes?.release()
+            }
+        }
+
         fun inDirectory(directory: Path): ScreenshotId.() -> Path = {
             when (this) {
                 is LocalScreenshot -> directory.resolve(path.fileName.toString())
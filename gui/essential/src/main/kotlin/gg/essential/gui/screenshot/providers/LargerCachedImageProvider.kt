@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.gui.screenshot.providers
+
+import gg.essential.gui.screenshot.ScreenshotId
+import gg.essential.gui.screenshot.downsampling.PixelBuffer
+import gg.essential.util.lwjgl3.api.NativeImageReader
+import io.netty.buffer.ByteBufAllocator
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.io.path.exists
+import kotlin.io.path.isDirectory
+import kotlin.io.path.name
+
+/**
+ * Provides images from the smallest already cached downsampled version which is at least as large as
+ * [targetResolution], so a missing thumbnail size can be derived from an existing one instead of having to decode (or
+ * download) the full-size original again.
+ * Items for which no such cached version exists are passed on to the [fallbackProvider].
+ *
+ * The images returned by this provider are larger than [targetResolution] and are expected to be downsampled further.
+ */
+class LargerCachedImageProvider(
+    private val fallbackProvider: WindowedImageProvider,
+    private val cacheDirectory: Path,
+    private val targetResolution: Pair<Int, Int>,
+    private val nativeImageReader: NativeImageReader,
+    private val alloc: ByteBufAllocator,
+) : WindowedImageProvider {
+
+    override var items: List<ScreenshotId> by fallbackProvider::items
+
+    /** Result of the last [findLargerCaches] call, along with the [bucketGeneration] it was computed at. */
+    @Volatile
+    private var largerCaches: Pair<Int, List<ScreenshotId.() -> Path>>? = null
+
+    override fun provide(windows: List<WindowedProvider.Window>, optional: Set<ScreenshotId>): Map<ScreenshotId, PixelBuffer> {
+        val map = mutableMapOf<ScreenshotId, PixelBuffer>()
+        val sources by lazy(LazyThreadSafetyMode.NONE) { getLargerCaches() }
+        for (window in windows) {
+            for (i in window.range.reversed(window.backwards)) {
+                val item = items[i]
+                if (item in optional) continue
+                for (source in sources) {
+                    val path = source(item)
+                    if (!path.exists()) continue
+                    map[item] = FileCachedWindowedImageProvider.read(path, nativeImageReader, alloc) ?: continue
+                    break
+                }
+            }
+        }
+
+        map.putAll(fallbackProvider.provide(windows, optional + map.keys))
+
+        return map
+    }
+
+    private fun getLargerCaches(): List<ScreenshotId.() -> Path> {
+        val generation = bucketGeneration.get()
+        largerCaches?.let { (cachedGeneration, caches) ->
+            if (cachedGeneration == generation) return caches
+        }
+        return findLargerCaches().also { largerCaches = Pair(generation, it) }
+    }
+
+    /**
+     * Lists the cache directories of all other resolutions which are large enough to derive [targetResolution] from,
+     * ordered from smallest to largest so we decode as few pixels as possible.
+     */
+    private fun findLargerCaches(): List<ScreenshotId.() -> Path> {
+        val (targetWidth, targetHeight) = targetResolution
+        val directories = try {
+            Files.newDirectoryStream(cacheDirectory).use { it.toList() }
+        } catch (e: IOException) {
+            return emptyList()
+        }
+        return directories
+            .mapNotNull { directory ->
+                if (!directory.isDirectory()) return@mapNotNull null
+                val match = BUCKET_REGEX.matchEntire(directory.name) ?: return@mapNotNull null
+                val width = match.groupValues[1].toInt()
+                val height = match.groupValues[2].toInt()
+                if (width < targetWidth || height < targetHeight) return@mapNotNull null
+                if (width == targetWidth && height == targetHeight) return@mapNotNull null
+                Pair(width.toLong() * height, directory)
+            }
+            .sortedBy { it.first }
+            .map { FileCachedWindowedImageProvider.inDirectory(it.second) }
+    }
+
+    companion object {
+        private val BUCKET_REGEX = Regex("bicubic_(\\d+)x(\\d+)")
+
+        /** Incremented whenever a new bucket directory is created, so providers know to list them again. */
+        private val bucketGeneration = AtomicInteger()
+
+        private fun bucketDirectoryName(width: Int, height: Int) = "bicubic_${width}x$height"
+
+        /** Returns the cache directory for images of the given resolution, creating it if it does not yet exist. */
+        fun bucketDirectory(cacheDirectory: Path, width: Int, height: Int): Path {
+            val directory = cacheDirectory.resolve(bucketDirectoryName(width, height))
+            if (!directory.exists()) {
+                Files.createDirectories(directory)
+                bucketGeneration.incrementAndGet()
+            }
+            return directory
+        }
+    }
+}
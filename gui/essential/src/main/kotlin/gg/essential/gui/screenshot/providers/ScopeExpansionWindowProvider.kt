@@ -12,16 +12,22 @@
 package gg.essential.gui.screenshot.providers
 
 import gg.essential.gui.screenshot.ScreenshotId
+import kotlin.math.abs
 import kotlin.math.max
 
 /**
  * Expands the scope of Window objects sent to the source provider by the amount of expansionFactor as a function of the size of the window
  * The resulting windows list will have 2 additional windows appended per input window
+ *
+ * If a [scrollVelocity] (in items per second, positive towards higher indices) is given, the expansion is biased
+ * towards the direction of motion: the window ahead grows by the amount of items expected to scroll into view within
+ * the next [LOOKAHEAD_SECONDS] and is requested first, while the window behind shrinks by the same amount.
  */
 open class ScopeExpansionWindowProvider<out T>(
     private val sourceProvider: WindowedProvider<T>,
     protected var expansionFactor: Float,
-    protected var expansionPerFrame: Int = 1
+    protected var expansionPerFrame: Int = 1,
+    private val scrollVelocity: () -> Float = { 0f },
 ) : WindowedProvider<T> {
 
     override var items: List<ScreenshotId> by sourceProvider::items
@@ -38,9 +44,10 @@ open class ScopeExpansionWindowProvider<out T>(
         // Workaround for [IntRange.shift] exploding on `coerceIn(items.indices)` if items is empty
         // If items are empty, there is no new scope to expand into
         if (items.isNotEmpty()) {
+            val velocity = scrollVelocity()
             // Expand all requested windows and add resulting windows if they cover a non-zero range
             for (window in windows) {
-                val elements = expand(window, previousScopes)
+                val elements = expand(window, previousScopes, velocity)
                 for (entry in elements) {
                     if (entry.range.size() > 0) {
                         expandedWindows.add(entry)
@@ -81,14 +88,22 @@ open class ScopeExpansionWindowProvider<out T>(
      */
     private fun expand(
         window: WindowedProvider.Window,
-        previousScopes: List<IntRange>
+        previousScopes: List<IntRange>,
+        velocity: Float,
     ): List<WindowedProvider.Window> {
 
         val backwards = window.backwards
         val windowRange = window.range
 
+        // Items we expect to scroll into view soon, these should be loaded ahead of time instead of the ones behind
+        val baseSize = (windowRange.size() * expansionFactor).toInt()
+        val lookahead = (abs(velocity) * LOOKAHEAD_SECONDS).toInt()
+        val aheadSize = baseSize + lookahead
+        val behindSize = max(0, baseSize - lookahead)
+        val movingForwards = velocity >= 0
+
         // Calculate the range that ends at the start of our range
-        val maxBackwardsSize = (windowRange.size() * expansionFactor).toInt()
+        val maxBackwardsSize = if (movingForwards) behindSize else aheadSize
         val backRange = windowRange.shift(-maxBackwardsSize)
 
         // The intersection of our ideal left window and the existing scopes
@@ -97,11 +112,12 @@ open class ScopeExpansionWindowProvider<out T>(
         } ?: IntRange(windowRange.first, windowRange.first)
 
         if (intersectedRangeBackwards.size() < maxBackwardsSize) {
-            intersectedRangeBackwards = intersectedRangeBackwards.expandLeft(expansionPerFrame)
+            intersectedRangeBackwards =
+                intersectedRangeBackwards.expandLeft(if (movingForwards) expansionPerFrame else expansionPerFrame + lookahead)
         }
 
         // Calculates the range that starts at the end of our range
-        val maxForwardSize = (windowRange.size() * expansionFactor).toInt()
+        val maxForwardSize = if (movingForwards) aheadSize else behindSize
         val forwardRange = windowRange.shift(maxForwardSize)
 
         // The intersection of our ideal right window and the existing scopes
@@ -110,7 +126,8 @@ open class ScopeExpansionWindowProvider<out T>(
         } ?: IntRange(windowRange.last, windowRange.last)
 
         if (intersectedRangeForwards.size() < maxForwardSize) {
-            intersectedRangeForwards = intersectedRangeForwards.expandRight(expansionPerFrame)
+            intersectedRangeForwards =
+                intersectedRangeForwards.expandRight(if (movingForwards) expansionPerFrame + lookahead else expansionPerFrame)
         }
 
 
@@ -118,7 +135,9 @@ open class ScopeExpansionWindowProvider<out T>(
             WindowedProvider.Window(intersectedRangeBackwards, backwards),
             WindowedProvider.Window(intersectedRangeForwards, backwards)
         )
-        return if (backwards) newRegions else newRegions.reversed()
+        // Request the window we are moving towards first, so its items are given priority
+        val backwardsFirst = if (lookahead > 0) !movingForwards else backwards
+        return if (backwardsFirst) newRegions else newRegions.reversed()
 
     }
 
@@ -185,7 +204,10 @@ open class ScopeExpansionWindowProvider<out T>(
         return null
     }
 
-
+    companion object {
+        /** How far ahead of the current scroll motion items should be loaded, in seconds. */
+        const val LOOKAHEAD_SECONDS = 0.5f
+    }
 }
 
 class MaxScopeExpansionWindowProvider<out T>(private val sourceProvider: WindowedProvider<T>) : WindowedProvider<T> {
@@ -19,10 +19,18 @@ import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.atomic.AtomicBoolean
 
+/**
+ * Provides items from [innerProvider] by loading them asynchronously on [threadPool].
+ *
+ * While [deferNewTasks] returns `true`, no new tasks are scheduled (already loaded items are still returned and tasks
+ * for items which are no longer requested are still canceled). This allows callers to skip an expensive resolution
+ * entirely while e.g. the user is scrolling quickly past the items and a lower resolution will do.
+ */
 class ThreadedWindowedProvider<T : Any>(
     private val innerProvider: WindowedProvider<T>,
     private val threadPool: ExecutorService,
     private val providerPriority: Int,
+    private val deferNewTasks: () -> Boolean = { false },
 ) : WindowedProvider<T> {
 
     override var items: List<ScreenshotId>
@@ -93,28 +101,30 @@ class ThreadedWindowedProvider<T : Any>(
                 return@removeIf true
             }
 
-            // Schedule new tasks (but only if we don't need to update `items`)
+            // Schedule new tasks (but only if we don't need to update `items`, and haven't been asked to hold off)
             if (newItemsRequested == null) {
 
-                for ((windowIndex, window) in windows.withIndex()) {
-                    for (index in window.range.reversed(window.backwards)) {
-
-                        val path = items[index]
+                if (!deferNewTasks()) {
+                    for ((windowIndex, window) in windows.withIndex()) {
+                        for (index in window.range.reversed(window.backwards)) {
 
-                        if (path in cache || path in activeTasks || path in optional) {
-                            continue
-                        }
+                            val path = items[index]
 
-                        val isCanceled = AtomicBoolean(false)
-                        val future = CompletableFuture.supplyAsync({
-                            if (!isCanceled.get()) {
-                                innerProvider.provide(index.toSingleWindowRequest(), emptySet())
-                            } else {
-                                emptyMap()
+                            if (path in cache || path in activeTasks || path in optional) {
+                                continue
                             }
-                        }, threadPool.withPriority(windowIndex, providerPriority, index))
 
-                        activeTasks[path] = Pair(future, isCanceled)
+                            val isCanceled = AtomicBoolean(false)
+                            val future = CompletableFuture.supplyAsync({
+                                if (!isCanceled.get()) {
+                                    innerProvider.provide(index.toSingleWindowRequest(), emptySet())
+                                } else {
+                                    emptyMap()
+                                }
+                            }, threadPool.withPriority(windowIndex, providerPriority, index))
+
+                            activeTasks[path] = Pair(future, isCanceled)
+                        }
                     }
                 }
 
@@ -123,6 +123,8 @@ class WardrobeState(
 
     val rawCosmetics = cosmeticsManager.cosmeticsData.cosmetics
 
+    private val rawCosmeticsById = memo { rawCosmetics().associateBy { it.id } }
+
     private val availableCosmetics = rawCosmetics.zip(unlockedCosmetics).map { (rawCosmetics, unlockedCosmetics) ->
         rawCosmetics.filterTo(mutableListOf()) {
             // TODO (low prio) `isAvailable` is not a pure function
@@ -181,6 +183,8 @@ class WardrobeState(
 
     val bundles = rawBundles
 
+    private val cosmeticsById = memo { cosmetics().associateBy { it.id } }
+
     val featuredPageCollections = rawFeaturedPageCollections.filter { it.isAvailable() }
     // We currently support only one layout, so we pick one from the available ones
     // We use the raw list state, so that in the case we only have expired pages, we keep showing them until we get new ones
@@ -217,19 +221,10 @@ class WardrobeState(
         Item.SkinItem(skin.id, skin.name, skin.skin, skin.createdAt, skin.lastUsedAt, skin.favoritedSince)
     }
 
-    private fun <T : Item> ListState<T>.filteredBySearch() =
-        zipWithEachElement(search) { item, search ->
-            if (item.name.contains(search, ignoreCase = true)) {
-                item
-            } else {
-                null
-            }
-        }.filterNotNull()
-
-    val visibleCosmeticItems = cosmeticItems.filteredBySearch()
-    val visibleBundleItems = bundleItems.filteredBySearch()
-    val visibleOutfitItems = outfitItems.filteredBySearch()
-    val visibleSkinItems = skinItems.filteredBySearch()
+    val visibleCosmeticItems = cosmeticItems.filteredBySearch(search)
+    val visibleBundleItems = bundleItems.filteredBySearch(search)
+    val visibleOutfitItems = outfitItems.filteredBySearch(search)
+    val visibleSkinItems = skinItems.filteredBySearch(search)
 
     val bundlePurchaseInProgress: MutableState<String?> = mutableStateOf(null)
 
@@ -378,10 +373,10 @@ class WardrobeState(
 
     private fun Observer.getUnownedCosmetics(itemsToCheck: List<CosmeticId>, predicate: (Item.CosmeticOrEmote) -> Boolean): List<Item.CosmeticOrEmote> {
         val unlockedCosmetics = unlockedCosmetics()
-        val cosmetics = rawCosmetics()
+        val cosmetics = rawCosmeticsById()
         return itemsToCheck.asSequence()
             .filter { it !in unlockedCosmetics }
-            .mapNotNull { id -> cosmetics.find { it.id == id } }
+            .mapNotNull { id -> cosmetics[id] }
             .map { Item.CosmeticOrEmote(it) }
             .filter(predicate)
             .toList()
@@ -466,9 +461,9 @@ class WardrobeState(
         if (map.isEmpty()) {
             return ImmutableMap.of()
         }
-        val cosmetics = rawCosmetics()
+        val cosmetics = rawCosmeticsById()
         return ImmutableMap.copyOf(map.mapNotNull { (slot, id) ->
-            val cosmetic = cosmetics.find { it.id == id }
+            val cosmetic = cosmetics[id]
             if (cosmetic != null) {
                 slot to EquippedCosmetic(cosmetic, settings[id] ?: emptyList())
             } else {
@@ -493,7 +488,7 @@ class WardrobeState(
     val currentlyEditingCosmeticCategoryId = mutableStateOf<CosmeticCategoryId?>(null)
     val currentlyEditingFeaturedPageCollectionId = mutableStateOf<FeaturedPageCollectionId?>(null)
 
-    val currentlyEditingCosmetic = stateBy { currentlyEditingCosmeticId()?.let { id -> cosmetics().find { it.id == id } } }
+    val currentlyEditingCosmetic = stateBy { currentlyEditingCosmeticId()?.let { id -> cosmeticsById()[id] } }
     val currentlyEditingCosmeticBundle = stateBy { currentlyEditingCosmeticBundleId()?.let { id -> bundles().find { it.id == id } } }
     val currentlyEditingCosmeticType = stateBy { currentlyEditingCosmeticTypeId()?.let { id -> types().find { it.id == id } } }
     val currentlyEditingCosmeticCategory = stateBy { currentlyEditingCosmeticCategoryId()?.let { id -> rawCategories().find { it.id == id } } }
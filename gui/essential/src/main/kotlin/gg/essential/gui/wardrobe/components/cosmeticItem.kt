@@ -233,7 +233,8 @@ fun LayoutScope.cosmeticItem(item: Item, category: WardrobeCategory, state: Ward
                                             ?: item.settingsOverride.setting<CosmeticSetting.Variant>()
                                         listOfNotNull(variantSetting)
                                     }
-                                    CosmeticPreview(item.cosmetic, settings)(Modifier.fillParent())
+                                    val live = containerDontUseThisUnlessYouReallyHaveTo.hoverScopeV2() or selected
+                                    CosmeticPreview(item.cosmetic, settings, live)(Modifier.fillParent())
                                 }
                                 is Item.OutfitItem -> outfitRenderPreview(state, item)
                                 is Item.SkinItem -> skinRenderPreview(item)
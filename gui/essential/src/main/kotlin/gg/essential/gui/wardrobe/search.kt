@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.gui.wardrobe
+
+import gg.essential.gui.elementa.state.v2.ListState
+import gg.essential.gui.elementa.state.v2.State
+import gg.essential.gui.elementa.state.v2.collections.MutableTrackedList
+import gg.essential.gui.elementa.state.v2.collections.TrackedList
+import gg.essential.gui.elementa.state.v2.memo
+
+/**
+ * Filters this list down to the items whose name contains the current [search] query, ignoring case.
+ *
+ * The lower-cased names of all items are kept around across updates, and only the items whose result may have changed
+ * are checked against a new query:
+ * - if characters were appended to the query (the common case while typing), only items which matched before can
+ *   possibly still match, so all others are skipped
+ * - if characters were removed from the end, items which matched before are known to still match
+ * - any other change to the query checks all items
+ *
+ * The result is updated via [TrackedList.Change.estimate], which is minimal for such pure narrowing/widening updates,
+ * so downstream consumers only see the items which actually appeared or disappeared.
+ */
+internal fun <T : Item> ListState<T>.filteredBySearch(search: State<String>): ListState<T> {
+    var trackedItems: TrackedList<T> = MutableTrackedList()
+    var trackedQuery = ""
+    val names = mutableListOf<String>()
+    val matches = mutableListOf<Boolean>()
+    var result = MutableTrackedList<T>()
+
+    fun String.normalizedForSearch() = lowercase()
+
+    return memo {
+        val items = this@filteredBySearch()
+        val query = search().normalizedForSearch()
+
+        for (change in items.getChangesSince(trackedItems)) {
+            when (change) {
+                is TrackedList.Add -> {
+                    val name = change.element.value.name.normalizedForSearch()
+                    names.add(change.element.index, name)
+                    matches.add(change.element.index, trackedQuery in name)
+                }
+                is TrackedList.Remove -> {
+                    names.removeAt(change.element.index)
+                    matches.removeAt(change.element.index)
+                }
+                is TrackedList.Clear -> {
+                    names.clear()
+                    matches.clear()
+                }
+            }
+        }
+        trackedItems = items
+
+        if (query != trackedQuery) {
+            val narrowing = query.startsWith(trackedQuery)
+            val widening = trackedQuery.startsWith(query)
+            for (i in names.indices) {
+                val matched = matches[i]
+                if (narrowing && !matched || widening && matched) continue
+                matches[i] = query in names[i]
+            }
+            trackedQuery = query
+        }
+
+        val newResult = items.filterIndexed { index, _ -> matches[index] }
+        result = result.applyChanges(TrackedList.Change.estimate(result, newResult))
+        result
+    }
+}
@@ -17,6 +17,8 @@ import gg.essential.cosmetics.CosmeticId
 import gg.essential.cosmetics.CosmeticTypeId
 import gg.essential.cosmetics.FeaturedPageCollectionId
 import gg.essential.gui.elementa.state.v2.*
+import gg.essential.gui.elementa.state.v2.collections.MutableTrackedList
+import gg.essential.gui.elementa.state.v2.collections.TrackedList
 import gg.essential.gui.elementa.state.v2.collections.asMap
 import gg.essential.mod.cosmetics.CosmeticBundle
 import gg.essential.mod.cosmetics.CosmeticCategory
@@ -36,43 +38,21 @@ class CosmeticsDataWithChanges(
     private val updatedBundles = mutableStateOf(mapOf<CosmeticBundleId, CosmeticBundle?>())
     private val updatedFeaturedPageCollections = mutableStateOf(mapOf<FeaturedPageCollectionId, FeaturedPageCollection?>())
 
-    override val cosmetics: ListState<Cosmetic> = stateBy {
-        val originals = inner.cosmetics().associateBy { it.id }
-        val updates = updatedCosmetics()
-        val updatedTypes = updatedTypes()
-        (originals + updates).mapNotNull { (_, cosmetic) ->
-            val updatedType = cosmetic?.type?.id?.let { updatedTypes[it] }
+    override val cosmetics: ListState<Cosmetic> =
+        changesOverlay(inner.cosmetics, updatedCosmetics, { it.id }, updatedTypes, { oldTypes, newTypes ->
+            changedKeys(oldTypes, newTypes).let { changedTypes -> { cosmetic: Cosmetic -> cosmetic.type.id in changedTypes } }
+        }) { cosmetic, updatedTypes ->
+            val updatedType = updatedTypes[cosmetic.type.id]
             if (updatedType != null) {
                 cosmetic.copy(type = updatedType)
             } else {
                 cosmetic
             }
         }
-    }.toListState()
-
-    override val categories: ListState<CosmeticCategory> = stateBy {
-        val originals = inner.categories().associateBy { it.id }
-        val updates = updatedCategories()
-        (originals + updates).mapNotNull { it.value }
-    }.toListState()
-
-    override val types: ListState<CosmeticType> = stateBy {
-        val originals = inner.types().associateBy { it.id }
-        val updates = updatedTypes()
-        (originals + updates).mapNotNull { it.value }
-    }.toListState()
-
-    override val bundles: ListState<CosmeticBundle> = stateBy {
-        val originals = inner.bundles().associateBy { it.id }
-        val updates = updatedBundles()
-        (originals + updates).mapNotNull { it.value }
-    }.toListState()
-
-    override val featuredPageCollections: ListState<FeaturedPageCollection> = stateBy {
-        val originals = inner.featuredPageCollections().associateBy { it.id }
-        val updates = updatedFeaturedPageCollections()
-        (originals + updates).mapNotNull { it.value }
-    }.toListState()
+    override val categories: ListState<CosmeticCategory> = changesOverlay(inner.categories, updatedCategories) { it.id }
+    override val types: ListState<CosmeticType> = changesOverlay(inner.types, updatedTypes) { it.id }
+    override val bundles: ListState<CosmeticBundle> = changesOverlay(inner.bundles, updatedBundles) { it.id }
+    override val featuredPageCollections: ListState<FeaturedPageCollection> = changesOverlay(inner.featuredPageCollections, updatedFeaturedPageCollections) { it.id }
 
     private val refHolder = ReferenceHolderImpl()
     private val categoriesMap = categories.asMap(refHolder) { it.id to it }
@@ -164,5 +144,207 @@ class CosmeticsDataWithChanges(
     override fun getType(id: CosmeticTypeId): CosmeticType? = typesMap[id]
     override fun getCosmeticBundle(id: CosmeticBundleId): CosmeticBundle? = bundlesMap[id]
     override fun getFeaturedPageCollection(id: FeaturedPageCollectionId): FeaturedPageCollection? = featuredPageCollectionsMap[id]
+}
+
+/** Applies [updates] (where `null` means removed) on top of [originals]. See [ChangesOverlay]. */
+private fun <K, V> changesOverlay(originals: ListState<V>, updates: State<Map<K, V?>>, key: (V) -> K): ListState<V> =
+    changesOverlay(originals, updates, key, stateOf(Unit), { _, _ -> { false } }) { value, _ -> value }
+
+/**
+ * Applies [updates] (where `null` means removed) on top of [originals], passing every entry through [transform].
+ * Whenever [dependency] changes, all entries matching the predicate returned by [affectedBy] are transformed again.
+ * See [ChangesOverlay].
+ */
+private fun <K, V, D> changesOverlay(
+    originals: ListState<V>,
+    updates: State<Map<K, V?>>,
+    key: (V) -> K,
+    dependency: State<D>,
+    affectedBy: (old: D, new: D) -> (V) -> Boolean,
+    transform: (V, D) -> V,
+): ListState<V> {
+    val overlay = ChangesOverlay(key, affectedBy, transform)
+    return memo { overlay.update(originals(), updates(), dependency()) }
+}
+
+/**
+ * Maintains the list of originals with updates applied on top of it.
+ *
+ * The resulting list has the same order as `(originals.associateBy(key) + updates).values` would, i.e. original
+ * entries keep their position and newly added entries are appended at the end, but it is updated incrementally one key
+ * at a time, so editing a single entry results in a single change to the list instead of the whole list being rebuilt
+ * and diffed.
+ * Bulk changes to the originals (e.g. during catalog sync) fall back to a full rebuild.
+ */
+private class ChangesOverlay<K, V, D>(
+    private val key: (V) -> K,
+    private val affectedBy: (old: D, new: D) -> (V) -> Boolean,
+    private val transform: (V, D) -> V,
+) {
+    private var list = MutableTrackedList<V>()
+
+    private var originals: TrackedList<V>? = null
+    private var updates: Map<K, V?> = emptyMap()
+    private var dependency: Any? = null
+
+    private val originalKeys = mutableListOf<K>()
+    private val originalValues = mutableMapOf<K, V>()
+    /** Keys of entries in [list] which only exist in [updates], in insertion order. */
+    private val addedKeys = linkedSetOf<K>()
+    /** Keys of the entries in [list], in the same order. */
+    private val listKeys = mutableListOf<K>()
+    /** Index in [list] of each key in [listKeys]. */
+    private val indices = mutableMapOf<K, Int>()
 
+    fun update(originals: TrackedList<V>, updates: Map<K, V?>, dependency: D): TrackedList<V> {
+        val oldOriginals = this.originals
+        val oldUpdates = this.updates
+        val oldDependency = currentDependency()
+        this.originals = originals
+        this.updates = updates
+        this.dependency = dependency
+
+        if (oldOriginals == null) {
+            rebuild(originals)
+            return list
+        }
+
+        if (oldOriginals !== originals) {
+            val changes = originals.getChangesSince(oldOriginals).toList()
+            if (changes.size > MAX_INCREMENTAL_CHANGES || changes.any { it is TrackedList.Clear }) {
+                rebuild(originals)
+                return list
+            }
+            for (change in changes) {
+                when (change) {
+                    is TrackedList.Add -> {
+                        val k = key(change.element.value)
+                        remove(k)
+                        originalKeys.add(change.element.index, k)
+                        originalValues[k] = change.element.value
+                        sync(k, change.element.index)
+                    }
+                    is TrackedList.Remove -> {
+                        val k = originalKeys.removeAt(change.element.index)
+                        originalValues.remove(k)
+                        remove(k)
+                        sync(k)
+                    }
+                    is TrackedList.Clear -> {}
+                }
+            }
+        }
+
+        if (oldUpdates !== updates) {
+            for (k in changedKeys(oldUpdates, updates)) {
+                sync(k)
+            }
+        }
+
+        if (oldDependency != dependency) {
+            val affected = affectedBy(oldDependency, dependency)
+            for (k in listKeys.toList()) {
+                val value = untransformedValue(k) ?: continue
+                if (affected(value)) {
+                    sync(k)
+                }
+            }
+        }
+
+        return list
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun currentDependency(): D = dependency as D
+
+    private fun untransformedValue(k: K): V? {
+        return if (k in updates) updates[k] else originalValues[k]
+    }
+
+    /**
+     * Brings the entry for the given key in [list] in line with its current value.
+     * [originalIndex] is the index of the key in [originalKeys] if known.
+     */
+    private fun sync(k: K, originalIndex: Int = -1) {
+        val value = untransformedValue(k)?.let { transform(it, currentDependency()) }
+        val index = indices[k]
+        when {
+            value == null -> remove(k)
+            index != null -> if (list[index] != value) list = list.set(index, value)
+            k in originalValues -> insert(k, value, indexAfterPreviousOriginal(if (originalIndex != -1) originalIndex else originalKeys.indexOf(k)))
+            else -> {
+                addedKeys.add(k)
+                insert(k, value, list.size)
+            }
+        }
+    }
+
+    /** Index in [list] directly after the closest entry preceding the original at the given index. */
+    private fun indexAfterPreviousOriginal(originalIndex: Int): Int {
+        for (i in originalIndex - 1 downTo 0) {
+            val index = indices[originalKeys[i]]
+            if (index != null) return index + 1
+        }
+        return 0
+    }
+
+    private fun insert(k: K, value: V, index: Int) {
+        list = list.add(index, value)
+        listKeys.add(index, k)
+        reindexFrom(index)
+    }
+
+    private fun remove(k: K) {
+        addedKeys.remove(k)
+        val index = indices.remove(k) ?: return
+        list = list.removeAt(index)
+        listKeys.removeAt(index)
+        reindexFrom(index)
+    }
+
+    private fun reindexFrom(index: Int) {
+        for (i in index until listKeys.size) {
+            indices[listKeys[i]] = i
+        }
+    }
+
+    private fun rebuild(originals: List<V>) {
+        originalKeys.clear()
+        originalValues.clear()
+        for (value in originals) {
+            val k = key(value)
+            originalKeys.add(k)
+            originalValues[k] = value
+        }
+        addedKeys.clear()
+        listKeys.clear()
+        indices.clear()
+
+        val newList = mutableListOf<V>()
+        for (k in originalKeys + updates.keys.filter { it !in originalValues }) {
+            val value = untransformedValue(k)?.let { transform(it, currentDependency()) } ?: continue
+            if (k !in originalValues) addedKeys.add(k)
+            indices[k] = listKeys.size
+            listKeys.add(k)
+            newList.add(value)
+        }
+        list = list.applyChanges(TrackedList.Change.estimate(list, newList))
+    }
+
+    companion object {
+        /** Amount of changes to the originals above which a full rebuild is cheaper than applying them one by one. */
+        private const val MAX_INCREMENTAL_CHANGES = 32
+    }
+}
+
+/** Returns all keys for which [old] and [new] differ. */
+private fun <K, V> changedKeys(old: Map<K, V>, new: Map<K, V>): Set<K> {
+    val changed = mutableSetOf<K>()
+    for ((k, v) in new) {
+        if (k !in old || old[k] != v) changed.add(k)
+    }
+    for (k in old.keys) {
+        if (k !in new) changed.add(k)
+    }
+    return changed
 }
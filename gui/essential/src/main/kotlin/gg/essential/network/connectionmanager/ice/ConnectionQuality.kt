@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.network.connectionmanager.ice
+
+import gg.essential.gui.elementa.state.v2.MutableState
+import gg.essential.ice.IceAgent
+import gg.essential.util.Client
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.withContext
+import org.slf4j.Logger
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.abs
+import kotlin.time.Duration.Companion.minutes
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeMark
+import kotlin.time.TimeSource
+
+/** The protocol which carries the Minecraft connection on top of ICE. */
+enum class IceTransport { QUIC, PSEUDO_TCP }
+
+/**
+ * How well a connection to another player is doing right now, as sampled by [ConnectionQualityMonitor].
+ * Values which the layers involved cannot tell us are `null`.
+ */
+data class ConnectionQuality(
+    /** The transport in use, `null` while ICE is still connecting. */
+    val transport: IceTransport?,
+    /** Whether we're talking via a TURN relay rather than directly to the other player. */
+    val relayed: Boolean,
+    /** Round trip time as seen by the transport, or by the ICE connectivity checks if the transport cannot tell. */
+    val rttMillis: Long?,
+    /** Smoothed variation of [rttMillis] between samples. */
+    val jitterMillis: Long?,
+    /** Fraction of packets lost since the previous sample. */
+    val loss: Float?,
+    val bytesReceivedPerSecond: Long,
+    val bytesSentPerSecond: Long,
+)
+
+/** Cumulative numbers a transport reports about itself, any of which may be `null` if it does not track them. */
+class TransportStats(val rttMillis: Long?, val sentPackets: Long?, val lostPackets: Long?)
+
+/**
+ * Periodically samples the quality of a single ICE connection, combining what [IceAgent] knows about the path with
+ * what the transport on top of it knows about the traffic, and publishes the result into [state] (keyed by [user]).
+ * Once the connection ends, a summary is stored in [ConnectionHistory] for future sessions with the same player.
+ */
+internal class ConnectionQualityMonitor(
+    private val logger: Logger,
+    private val agent: IceAgent,
+    private val user: UUID,
+    private val state: MutableState<Map<UUID, ConnectionQuality>>,
+) {
+    private val bytesReceived = AtomicLong()
+    private val bytesSent = AtomicLong()
+
+    @Volatile
+    private var transport: IceTransport? = null
+    @Volatile
+    private var transportStats: (suspend () -> TransportStats?)? = null
+    @Volatile
+    private var established = false
+
+    fun packetReceived(bytes: Int) {
+        bytesReceived.addAndGet(bytes.toLong())
+    }
+
+    fun packetSent(bytes: Int) {
+        bytesSent.addAndGet(bytes.toLong())
+    }
+
+    /** Called once the transport has been chosen, before it starts connecting. */
+    fun transportStarted(transport: IceTransport, stats: suspend () -> TransportStats?) {
+        this.transport = transport
+        this.transportStats = stats
+    }
+
+    /** Called once the transport has successfully connected. */
+    fun transportEstablished() {
+        established = true
+    }
+
+    /** Samples the connection until cancelled. Should be started undispatched, so the summary is always recorded. */
+    suspend fun run() {
+        var published: ConnectionQuality? = null
+        var samples = 0
+        var rttSum = 0L
+        var rttSamples = 0
+        var lastStats: TransportStats? = null
+        try {
+            var lastTime = TimeSource.Monotonic.markNow()
+            var lastReceived = 0L
+            var lastSent = 0L
+            var lastRtt: Long? = null
+            var jitter: Double? = null
+            while (true) {
+                delay(SAMPLE_INTERVAL)
+
+                val stats = transportStats?.invoke()
+                val rtt = stats?.rttMillis ?: agent.dataPathRtt?.inWholeMilliseconds
+                if (rtt != null) {
+                    if (lastRtt != null) {
+                        // Smoothed the same way as the interarrival jitter of RFC 3550
+                        val difference = abs(rtt - lastRtt).toDouble()
+                        jitter = jitter?.let { it + (difference - it) / 16 } ?: difference
+                    }
+                    lastRtt = rtt
+                    rttSum += rtt
+                    rttSamples++
+                }
+
+                val loss = lossBetween(lastStats, stats)
+                if (stats != null) {
+                    lastStats = stats
+                }
+
+                val seconds = lastTime.elapsedNow().inWholeMilliseconds.coerceAtLeast(1) / 1000.0
+                lastTime = TimeSource.Monotonic.markNow()
+                val received = bytesReceived.get()
+                val sent = bytesSent.get()
+
+                val quality = ConnectionQuality(
+                    transport,
+                    agent.dataPathRelayed,
+                    rtt,
+                    jitter?.toLong(),
+                    loss,
+                    ((received - lastReceived) / seconds).toLong(),
+                    ((sent - lastSent) / seconds).toLong(),
+                )
+                lastReceived = received
+                lastSent = sent
+
+                logger.trace("Connection quality: {}", quality)
+                samples++
+                withContext(Dispatchers.Client) {
+                    state.set { it + (user to quality) }
+                }
+                published = quality
+            }
+        } finally {
+            val session = ConnectionHistory.Session(
+                transport,
+                established,
+                agent.dataPathRelayed,
+                if (rttSamples > 0) rttSum / rttSamples else null,
+                lossBetween(null, lastStats),
+            )
+            logger.info("Connection quality over {} samples: {}", samples, session)
+            ConnectionHistory.record(user, session)
+
+            if (published != null) {
+                withContext(NonCancellable + Dispatchers.Client) {
+                    // Another connection to the same player may have replaced ours already
+                    state.set { if (it[user] === published) it - user else it }
+                }
+            }
+        }
+    }
+
+    private fun lossBetween(previous: TransportStats?, current: TransportStats?): Float? {
+        val sent = (current?.sentPackets ?: return null) - (previous?.sentPackets ?: 0)
+        val lost = (current.lostPackets ?: return null) - (previous?.lostPackets ?: 0)
+        return if (sent > 0) (lost.toFloat() / sent).coerceIn(0f, 1f) else 0f
+    }
+
+    companion object {
+        private val SAMPLE_INTERVAL = 1.seconds
+    }
+}
+
+/**
+ * Remembers how earlier sessions with other players went (for the current run of the game), so the next session with
+ * the same player can start out with better choices of transport and tuning.
+ */
+internal object ConnectionHistory {
+    data class Session(
+        val transport: IceTransport?,
+        /** Whether the transport managed to connect. */
+        val established: Boolean,
+        val relayed: Boolean,
+        /** Mean RTT over the session, as seen by the transport while in use. */
+        val rttMillis: Long?,
+        /** Fraction of packets lost over the whole session. */
+        val loss: Float?,
+    ) {
+        val time: TimeMark = TimeSource.Monotonic.markNow()
+    }
+
+    private val sessions = ConcurrentHashMap<UUID, List<Session>>()
+
+    fun record(user: UUID, session: Session) {
+        sessions.merge(user, listOf(session)) { old, new -> (old + new).takeLast(MAX_SESSIONS) }
+    }
+
+    /**
+     * Whether QUIC should not be offered to the given player (see [IceManagerImpl.Flags.isQuic]), because it failed to
+     * connect the last [QUIC_FAILURES_BEFORE_FALLBACK] times even though ICE itself succeeded.
+     * Such failures are forgotten after [FAILURE_MEMORY], so we eventually give QUIC another chance.
+     */
+    fun shouldAvoidQuic(user: UUID): Boolean {
+        val recent = sessions[user].orEmpty()
+            .filter { it.transport != null && it.time.elapsedNow() < FAILURE_MEMORY }
+            .takeLast(QUIC_FAILURES_BEFORE_FALLBACK)
+        return recent.size == QUIC_FAILURES_BEFORE_FALLBACK &&
+            recent.all { it.transport == IceTransport.QUIC && !it.established }
+    }
+
+    /** Mean RTT of earlier established sessions with the given player over the same kind of path, if any. */
+    fun typicalRtt(user: UUID, relayed: Boolean): Long? {
+        val rtts = sessions[user].orEmpty()
+            .filter { it.established && it.relayed == relayed }
+            .mapNotNull { it.rttMillis }
+        return if (rtts.isEmpty()) null else rtts.sum() / rtts.size
+    }
+
+    private const val MAX_SESSIONS = 5
+    private const val QUIC_FAILURES_BEFORE_FALLBACK = 2
+    private val FAILURE_MEMORY = 10.minutes
+}
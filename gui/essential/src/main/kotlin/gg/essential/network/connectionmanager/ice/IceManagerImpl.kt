@@ -13,6 +13,8 @@ package gg.essential.network.connectionmanager.ice
 
 import gg.essential.connectionmanager.common.packet.ice.IceCandidatePacket
 import gg.essential.connectionmanager.common.packet.ice.IceSessionPacket
+import gg.essential.gui.elementa.state.v2.State
+import gg.essential.gui.elementa.state.v2.mutableStateOf
 import gg.essential.gui.modal.sps.FirewallBlockingModal
 import gg.essential.ice.CandidateManager
 import gg.essential.ice.CandidateType
@@ -29,6 +31,7 @@ import gg.essential.network.connectionmanager.ice.IceManager.Companion.TCP_TIMEO
 import gg.essential.network.connectionmanager.ice.IceManager.Companion.TURN_HOSTS
 import gg.essential.network.connectionmanager.ice.IceManager.Companion.VOICE_HEADER_BYTE
 import gg.essential.network.registerPacketHandler
+import gg.essential.quic.backend.QuicTransportConfig
 import gg.essential.slf4j.ChannelLogger
 import gg.essential.slf4j.DelegatingLogger
 import gg.essential.slf4j.CombinedLogger
@@ -54,7 +57,7 @@ import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.channels.ReceiveChannel
 import kotlinx.coroutines.channels.SendChannel
-import kotlinx.coroutines.delay
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.job
 import kotlinx.coroutines.launch
@@ -113,6 +116,10 @@ abstract class IceManagerImpl(
 
     private val connections = mutableMapOf<UUID, IceConnection>()
 
+    private val mutableConnectionQuality = mutableStateOf(mapOf<UUID, ConnectionQuality>())
+    /** Live quality of all active connections, keyed by the other player. Updated about once a second. */
+    val connectionQuality: State<Map<UUID, ConnectionQuality>> = mutableConnectionQuality
+
     protected abstract var integratedServerVoicePort: Int
 
     protected abstract val resourcePackHttpServerPort: Int
@@ -279,7 +286,7 @@ abstract class IceManagerImpl(
 
     private fun getCandidateManager(): SharedCandidateManager {
         var active = candidateManager
-        if (active == null || active.candidateManager.anyShutDown) {
+        if (active == null || active.candidateManager.anyShutDown || active.candidateManager.networkChanged) {
             active?.children?.close()
             active = SharedCandidateManager()
             candidateManager = active
@@ -287,7 +294,10 @@ abstract class IceManagerImpl(
         return active
     }
 
-    /** A [CandidateManager] which is kept alive as long as required for concurrent use by multiple connections. */
+    /**
+     * A [CandidateManager] which is kept alive as long as required for concurrent use by multiple connections, and for
+     * [CANDIDATE_POOL_IDLE_TIME] after that, so new connections can skip gathering.
+     */
     private inner class SharedCandidateManager {
         val job = Job(connectionsScope.coroutineContext.job)
         val scope = connectionsScope + job
@@ -318,24 +328,60 @@ abstract class IceManagerImpl(
          */
         val children = Channel<Job>(Channel.UNLIMITED)
 
+        /** Number of connections currently using this manager. */
+        private var activeChildren = 0
+        /** When the last connection stopped using this manager. */
+        private var lastUsed = TimeSource.Monotonic.markNow()
+        /** Set once [children] has been closed, at which point there's no point in keeping unused candidates alive. */
+        private var retired = false
+        private val usageChanged = Channel<Unit>(Channel.CONFLATED)
+
         init {
-            // Always keep alive all candidates for at least 60 seconds so if another user connects shortly after the
-            // first one, they can still use them, even if the ICE process of the first one already finished.
+            // Keep alive all candidates (and with them their STUN bindings and TURN allocations, which are refreshed in
+            // the background) until no connection has used them for a while, so if another user connects shortly after
+            // the previous one, they can use them right away, even if the ICE process of the previous one already
+            // finished.
             scope.launch(start = CoroutineStart.UNDISPATCHED) {
-                children.send(coroutineContext.job)
                 val candidates = mutableListOf<LocalCandidate>()
-                for (candidate in candidateManager.getCandidates(coroutineContext.job)) {
-                    candidates.add(candidate)
+                val gatherJob = launch {
+                    for (candidate in candidateManager.getCandidates(coroutineContext.job)) {
+                        candidates.add(candidate)
+                    }
+                }
+                while (!retired) {
+                    if (activeChildren > 0) {
+                        usageChanged.receive()
+                        continue
+                    }
+                    val remaining = CANDIDATE_POOL_IDLE_TIME - lastUsed.elapsedNow()
+                    if (!remaining.isPositive()) {
+                        break
+                    }
+                    withTimeoutOrNull(remaining) { usageChanged.receive() }
                 }
-                delay(60.seconds)
+                logging.logger.debug("Releasing idle candidates")
+                gatherJob.cancel()
                 for (candidate in candidates) {
                     candidate.close()
                 }
             }
 
             scope.launch {
-                for (child in children) {
-                    child.join()
+                coroutineScope {
+                    for (child in children) {
+                        activeChildren++
+                        launch {
+                            try {
+                                child.join()
+                            } finally {
+                                activeChildren--
+                                lastUsed = TimeSource.Monotonic.markNow()
+                                usageChanged.trySend(Unit)
+                            }
+                        }
+                    }
+                    retired = true
+                    usageChanged.trySend(Unit)
                 }
                 job.cancel()
             }
@@ -402,10 +448,14 @@ abstract class IceManagerImpl(
         val job = Job(parentScope.coroutineContext.job)
         val coroutineScope = parentScope + job
 
+        private val avoidQuic = ConnectionHistory.shouldAvoidQuic(user).also { avoid ->
+            if (avoid) logger.warn("Not offering QUIC because it failed to connect to this player in previous sessions.")
+        }
+
         val localCreds = run {
             // the "-q" in the ufrag is used to communicate to the other side that QUIC is supported (and preferred)
             // see [Flags.isQuic]
-            var flags = if (SUPPORTS_QUIC) "q" else ""
+            var flags = if (SUPPORTS_QUIC && !avoidQuic) "q" else ""
             // the "v12345" in the ufrag is used to communicate to the other side the port used by third-party voice mods
             // see [IceConnection.getVoicePort]
             if (!client) flags += "v$integratedServerVoicePort"
@@ -430,6 +480,11 @@ abstract class IceManagerImpl(
             remoteCreds,
         )
 
+        val quality = ConnectionQualityMonitor(logger, agent, user, mutableConnectionQuality)
+        init {
+            coroutineScope.launch(start = CoroutineStart.UNDISPATCHED) { quality.run() }
+        }
+
         val forwardLocalCandidatesJob = coroutineScope.launch(Dispatchers.Client) {
             cmConnection.call(IceSessionPacket(user, localCreds.first, localCreds.second.decodeToString()))
                 .fireAndForget()
@@ -456,6 +511,7 @@ abstract class IceManagerImpl(
         val inboundPacketSortingJob = coroutineScope.launch(Dispatchers.Unconfined) {
             for ((candidate, data) in agent.inboundDataChannel) {
                 telemetry.packetReceived(data.size, candidate.isIPv6, candidate.isRelay)
+                quality.packetReceived(data.size)
                 if (data.isNotEmpty() && data[0] == VOICE_HEADER_BYTE) {
                     inboundVoiceChannel.send(data)
                 } else {
@@ -471,6 +527,7 @@ abstract class IceManagerImpl(
             launch {
                 for (packet in mergedChannel) {
                     telemetry.packetSent(packet.size)
+                    quality.packetSent(packet.size)
                     agent.outboundDataChannel.send(packet)
                 }
                 agent.outboundDataChannel.close()
@@ -488,7 +545,13 @@ abstract class IceManagerImpl(
             val connectionJob = Job(job)
             val connectionScope = coroutineScope + connectionJob
             val (recvChannel, sendChannel) = if (flags.await().isQuic) {
-                val quicChannel = QuicChannel(connectionScope, logger, inboundDataChannel, outboundDataChannel)
+                // ICE only measures the RTT of a mostly idle path, earlier sessions with the same player tell us what it
+                // looked like under load, which is what the flow-control window needs to be sized for.
+                val iceRtt = agent.dataPathRtt?.inWholeMilliseconds ?: -1
+                val typicalRtt = ConnectionHistory.typicalRtt(user, agent.dataPathRelayed) ?: -1
+                val transportConfig = QuicTransportConfig(maxOf(iceRtt, typicalRtt), agent.dataPathRelayed)
+                val quicChannel = QuicChannel(connectionScope, logger, inboundDataChannel, outboundDataChannel, transportConfig)
+                quality.transportStarted(IceTransport.QUIC) { quicChannel.collectStats() }
                 if (client) {
                     val (streams, httpPort) = quicChannel.connect()
                     proxyHttpPort = httpPort
@@ -499,6 +562,7 @@ abstract class IceManagerImpl(
             } else {
                 proxyHttpPort = null
                 val pseudoTcpChannel = PseudoTcpChannel(connectionScope, inboundDataChannel, outboundDataChannel)
+                quality.transportStarted(IceTransport.PSEUDO_TCP) { pseudoTcpChannel.collectStats() }
                 withTimeoutOrNull(TCP_TIMEOUT.toLong()) {
                     if (client) {
                         pseudoTcpChannel.connect()
@@ -507,6 +571,7 @@ abstract class IceManagerImpl(
                     }
                 } ?: throw PrettyIOException(if (client) "Connect timed out" else "Accept timed out", null)
             }
+            quality.transportEstablished()
             McConnectionArgs(coroutineScope, recvChannel, sendChannel) {
                 coroutineScope.launch {
                     // MC connection was closed, mark job as completed so it can transition into Completing state
@@ -706,6 +771,7 @@ abstract class IceManagerImpl(
 
     companion object {
         private val LOGGER = LoggerFactory.getLogger("essential/ice")
+        private val CANDIDATE_POOL_IDLE_TIME = Integer.getInteger("essential.sps.candidate_pool_idle_seconds", 300).seconds
         @OptIn(ExperimentalCoroutinesApi::class) // will become stable in 1.9 (currently still in RC phase)
         private val mainThread = Dispatchers.Default.limitedParallelism(1)
         private var nextIceConnectionId = AtomicInteger(0)
@@ -20,11 +20,10 @@ import kotlinx.coroutines.cancel
 import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.channels.ReceiveChannel
 import kotlinx.coroutines.channels.SendChannel
-import kotlinx.coroutines.delay
 import kotlinx.coroutines.job
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.plus
-import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
 import org.ice4j.pseudotcp.PseudoTCPBase
 import org.ice4j.pseudotcp.PseudoTcpNotify
 import org.ice4j.pseudotcp.PseudoTcpSocketFactory.DEFAULT_CONVERSATION_ID
@@ -33,6 +32,7 @@ import java.io.IOException
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.util.*
+import kotlin.time.Duration.Companion.seconds
 
 class PseudoTcpChannel(
     coroutineScope: CoroutineScope,
@@ -55,7 +55,12 @@ class PseudoTcpChannel(
     private val tcpInboundChannel = Channel<ByteArray>()
     private val tcpOutboundChannel = Channel<ByteArray>()
 
-    private var clockJob: Job? = null
+    /** Wakes up the clock loop, so it re-evaluates when [PseudoTCPBase.notifyClock] needs to be called next. */
+    private val clockWakeup = Channel<Unit>(Channel.CONFLATED)
+    /** Signalled whenever the remote may have made progress with our send buffer, see [flush]. */
+    private val sendProgress = Channel<Unit>(Channel.CONFLATED)
+    /** Completes once we've received the remote's close packet. */
+    private val remoteClosed = CompletableDeferred<Unit>()
 
     init {
         internalScope.launch(CoroutineName("PseudoTCP Read")) {
@@ -77,6 +82,7 @@ class PseudoTcpChannel(
                     tcpInboundChannel.send(data)
                 } else {
                     tcpInboundChannel.close()
+                    remoteClosed.complete(Unit)
                     break
                 }
             }
@@ -104,32 +110,38 @@ class PseudoTcpChannel(
             impl.send(CLOSE_PACKET, CLOSE_PACKET.size)
             scheduleClock()
             flush()
+            // The remote will send its own close packet once it is done too (as will older versions, because they
+            // close the MC connection once they receive ours), so wait for that, so anything it still had to send us
+            // is delivered before we tear down the connection.
+            withTimeoutOrNull(REMOTE_CLOSE_TIMEOUT) { remoteClosed.await() }
             onTcpClosed(impl, null)
         }
         internalScope.launch(CoroutineName("PseudoTcp Feed")) {
             for (buf in transportRecv) {
                 impl.notifyPacket(buf, buf.size)
+                sendProgress.trySend(Unit)
                 scheduleClock()
             }
         }
-    }
-
-    private fun scheduleClock() {
-        clockJob?.cancel()
-        clockJob = null
+        internalScope.launch(CoroutineName("PseudoTcp Clock")) {
+            while (true) {
+                val delayMs = impl.getNextClock(PseudoTCPBase.now())
+                if (delayMs == -1L) {
+                    clockWakeup.receive()
+                    continue
+                }
 
-        val delayMs = impl.getNextClock(PseudoTCPBase.now())
-        if (delayMs == -1L) {
-            return
+                val wokenUp = withTimeoutOrNull(delayMs) { clockWakeup.receive() } != null
+                if (!wokenUp) {
+                    impl.notifyClock(PseudoTCPBase.now())
+                    sendProgress.trySend(Unit)
+                }
+            }
         }
+    }
 
-        clockJob = internalScope.launch(CoroutineName("PseudoTcp Clock")) {
-            delay(delayMs)
-
-            impl.notifyClock(PseudoTCPBase.now())
-
-            scheduleClock()
-        }
+    private fun scheduleClock() {
+        clockWakeup.trySend(Unit)
     }
 
     suspend fun connect(): Pair<ReceiveChannel<ByteArray>, SendChannel<ByteArray>> {
@@ -145,6 +157,15 @@ class PseudoTcpChannel(
         return Pair(tcpInboundChannel, tcpOutboundChannel)
     }
 
+    /**
+     * Current stats of the pseudo-TCP connection.
+     * [PseudoTCPBase] does not keep track of how many packets it had to retransmit, so only the RTT is known.
+     */
+    fun collectStats(): TransportStats? {
+        val rtt = rxSrtt?.getLong(impl) ?: return null
+        return TransportStats(rtt.takeIf { it > 0 }, null, null)
+    }
+
     override fun onTcpOpen(tcp: PseudoTCPBase) {
         tcpOpen.complete(Unit)
     }
@@ -172,19 +193,26 @@ class PseudoTcpChannel(
         return WriteResult.WR_SUCCESS
     }
 
-    private suspend fun flush() = withContext(Dispatchers.IO) {
-        val ackNotify = impl.ackNotify
-        synchronized(ackNotify) {
-            val method = PseudoTCPBase::class.java.getDeclaredMethod("getBytesBufferedNotSent")
-            method.isAccessible = true
-            while (method.invoke(impl) as Long > 0) {
-                @Suppress("PLATFORM_CLASS_MAPPED_TO_KOTLIN")
-                (ackNotify as Object).wait(100)
-            }
+    /** Suspends until all data written so far has been sent. */
+    private suspend fun flush() {
+        while (getBytesBufferedNotSent.invoke(impl) as Long > 0) {
+            sendProgress.receive()
         }
     }
 
     companion object {
+        private val REMOTE_CLOSE_TIMEOUT = 5.seconds
+
+        // Not accessible, but we need it to know when all our data has been sent (PseudoTcpSocketImpl has access to it)
+        private val getBytesBufferedNotSent = PseudoTCPBase::class.java.getDeclaredMethod("getBytesBufferedNotSent")
+            .apply { isAccessible = true }
+        // Smoothed RTT estimate, only used for stats, so we don't mind if it's not there
+        private val rxSrtt = try {
+            PseudoTCPBase::class.java.getDeclaredField("m_rx_srtt").apply { isAccessible = true }
+        } catch (e: NoSuchFieldException) {
+            null
+        }
+
         // Ice4j's pseudo TCP implementation does not actually implement socket shutdown. So, to avoid having to wait
         // for timeout each time, we send a specially crafted packet which we can detect on the other side and then
         // close from there as well.
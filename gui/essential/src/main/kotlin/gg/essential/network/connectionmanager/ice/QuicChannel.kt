@@ -13,6 +13,7 @@ package gg.essential.network.connectionmanager.ice
 
 import gg.essential.quic.backend.QuicBackendLoader
 import gg.essential.quic.backend.QuicListener
+import gg.essential.quic.backend.QuicTransportConfig
 import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineName
 import kotlinx.coroutines.CoroutineScope
@@ -26,16 +27,19 @@ import kotlinx.coroutines.channels.SendChannel
 import kotlinx.coroutines.job
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.plus
+import kotlinx.coroutines.suspendCancellableCoroutine
 import org.slf4j.Logger
+import kotlin.coroutines.resume
 
 class QuicChannel(
     coroutineScope: CoroutineScope,
     private val logger: Logger,
     private val transportRecv: ReceiveChannel<ByteArray>,
     private val transportSend: SendChannel<ByteArray>,
+    transportConfig: QuicTransportConfig = QuicTransportConfig.UNKNOWN,
 ) : QuicListener {
     private val internalScope = coroutineScope + Job(coroutineScope.coroutineContext.job) + Dispatchers.Default
-    private val impl = QuicBackendLoader.INSTANCE.createImpl(logger, this)
+    private val impl = QuicBackendLoader.INSTANCE.createImpl(logger, this, transportConfig)
 
     private val quicOpen = CompletableDeferred<Unit>()
     private val quicStreamInboundChannel = Channel<ByteArray>(Channel.UNLIMITED)
@@ -78,6 +82,13 @@ class QuicChannel(
         return Pair(quicStreamInboundChannel, quicStreamOutboundChannel)
     }
 
+    /** Current stats of the QUIC connection, or `null` if it is not open. */
+    suspend fun collectStats(): TransportStats? = suspendCancellableCoroutine { continuation ->
+        impl.collectStats { stats ->
+            continuation.resume(stats?.let { TransportStats(it.rttMillis.takeIf { rtt -> rtt >= 0 }, it.sentPackets, it.lostPackets) })
+        }
+    }
+
     override fun onOpen() {
         logger.debug("QuicChannel.onOpen")
         quicOpen.complete(Unit)
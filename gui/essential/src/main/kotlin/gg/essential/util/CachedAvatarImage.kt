@@ -15,9 +15,8 @@ import gg.essential.elementa.UIComponent
 import gg.essential.elementa.components.UIContainer
 import gg.essential.elementa.components.UIImage
 import gg.essential.elementa.components.image.BlurHashImage
-import gg.essential.gui.layoutdsl.*
-import gg.essential.lib.caffeine.cache.CacheLoader
 import gg.essential.lib.caffeine.cache.Caffeine
+import gg.essential.gui.layoutdsl.*
 import gg.essential.util.GuiEssentialPlatform.Companion.platform
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.asExecutor
@@ -25,60 +24,109 @@ import org.slf4j.LoggerFactory
 import java.awt.image.BufferedImage
 import java.nio.file.Path
 import java.util.*
-import java.util.concurrent.CompletableFuture.completedFuture
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.TimeUnit
 import javax.imageio.ImageIO
 import kotlin.io.path.createDirectories
+import kotlin.io.path.deleteIfExists
 import kotlin.io.path.exists
+import kotlin.io.path.readText
 import kotlin.io.path.writeBytes
+import kotlin.io.path.writeText
 
 object CachedAvatarImage {
 
     private val LOGGER = LoggerFactory.getLogger(CachedAvatarImage::class.java)
 
     private val cacheBasePath = platform.essentialBaseDir.resolve("avatar-cache")
-    private val cachePath = object {
-        operator fun get(uuid: UUID): Path = uuid.toDashlessString().let {
-            cacheBasePath
-                .resolve(it[0].toString())
-                .resolve(it[1].toString())
-                .resolve(it.substring(2))
-        }
+
+    private fun playerPath(directory: String, uuid: UUID, extension: String = ""): Path = uuid.toDashlessString().let {
+        cacheBasePath
+            .resolve(directory)
+            .resolve(it[0].toString())
+            .resolve(it[1].toString())
+            .resolve(it.substring(2) + extension)
+    }
+
+    /** Stores the last fetched avatar of each player. */
+    private val avatarPath = object {
+        operator fun get(uuid: UUID): Path = playerPath("avatars", uuid, ".png")
+    }
+
+    /** Stores the key of the skin each stored avatar shows, if it was known when the avatar was fetched. */
+    private val skinKeyPath = object {
+        operator fun get(uuid: UUID): Path = playerPath("skins", uuid)
     }
 
-    /** Cache which supplies fresh avatars no older than 30 minutes. */
-    private val freshCache = Caffeine.newBuilder()
-        .expireAfterWrite(30, TimeUnit.MINUTES)
-        .executor(Dispatchers.IO.asExecutor())
-        .buildAsync<UUID, BufferedImage>(CacheLoader {
-            loadFromWeb(it)
-        })
+    private val ioExecutor = Dispatchers.IO.asExecutor()
 
-    /** Cache which supplies avatars from disk, regardless of age. */
-    private val diskCache = Caffeine.newBuilder()
+    /**
+     * One image per player, which all avatar components of that player share their texture with, so each avatar is
+     * only decoded and uploaded once while it is in use.
+     * All avatars are fetched at the same 8x8 size, so these are tiny, but we still drop the ones which haven't been
+     * used for a while.
+     */
+    private val avatarImages = Caffeine.newBuilder()
         .expireAfterAccess(10, TimeUnit.MINUTES)
-        .executor(Dispatchers.IO.asExecutor())
-        .buildAsync<UUID, Optional<BufferedImage>>(CacheLoader {
-            Optional.ofNullable(loadFromDisk(it))
-        })
+        .build<UUID, UIImage>()
 
     private val fallbackImage = BlurHashImage("U9QuA+e8vyu48wVsVYkq_~tlP9Z~Y7pIyXVX")
 
-    private fun loadFromDisk(uuid: UUID): BufferedImage? {
-        val path = cachePath[uuid]
+    /**
+     * Checks whether the stored avatar of the given player still shows their current skin, and fetches it again if it
+     * does not.
+     * Called whenever the profile of a player has been fetched anyway (e.g. to look up their name), so avatars never
+     * cost any profile requests of their own.
+     */
+    @JvmStatic
+    fun validate(uuid: UUID, profile: UuidNameLookup.Profile) {
+        val properties = profile.properties ?: return // lookups by name do not include the skin
+        val hash = properties
+            .find { it.name == "textures" }
+            ?.value
+            ?.let { value -> runCatching { value.propertyToSkin().hash }.getOrNull() }
+            ?.takeIf { it.isNotEmpty() }
+        // Players without a custom skin get one of the default skins depending on their uuid, which only changes if
+        // they set a custom one
+        val skinKey = hash ?: DEFAULT_SKIN_KEY
+
+        ioExecutor.execute {
+            if (!avatarPath[uuid].exists() || loadSkinKey(uuid) == skinKey) {
+                return@execute
+            }
+            val image = downloadAvatar(uuid, skinKey) ?: return@execute
+            avatarImages.put(uuid, UIImage(CompletableFuture.completedFuture(image), fallbackImage))
+        }
+    }
+
+    private fun loadSkinKey(uuid: UUID): String? {
+        val path = skinKeyPath[uuid]
         if (!path.exists()) {
             return null
         }
         return try {
-            ImageIO.read(path.toFile())
+            path.readText()
         } catch (e: Exception) {
-            LOGGER.warn("Failed to load avatar $uuid from cache: ", e)
+            LOGGER.warn("Failed to load skin of $uuid from cache: ", e)
             null
         }
     }
 
-    private fun loadFromWeb(uuid: UUID): BufferedImage? {
-        val url = "https://crafthead.net/helm/${uuid.toDashlessString()}"
+    private fun loadAvatar(uuid: UUID): BufferedImage? {
+        val path = avatarPath[uuid]
+        if (path.exists()) {
+            try {
+                ImageIO.read(path.toFile())?.let { return it }
+            } catch (e: Exception) {
+                LOGGER.warn("Failed to load avatar $uuid from cache: ", e)
+            }
+        }
+        return downloadAvatar(uuid, null)
+    }
+
+    /** Fetches the current avatar of the given player and stores it along with the key of the skin it shows. */
+    private fun downloadAvatar(uuid: UUID, skinKey: String?): BufferedImage? {
+        val url = "https://crafthead.net/helm/${uuid.toDashlessString()}/$AVATAR_SIZE"
 
         val bytes = try {
             httpGetToBytesBlocking(url)
@@ -91,42 +139,50 @@ object CachedAvatarImage {
             ImageIO.read(bytes.inputStream())
         } catch (e: Exception) {
             LOGGER.warn("Failed read avatar $uuid image: ", e)
-            return null
-        }
-
-        diskCache.asMap()[uuid] = completedFuture(Optional.of(image))
+            null
+        } ?: return null
 
         try {
-            val path = cachePath[uuid]
+            val path = avatarPath[uuid]
             path.parent.createDirectories()
             path.writeBytes(bytes)
+            val keyPath = skinKeyPath[uuid]
+            if (skinKey != null) {
+                keyPath.parent.createDirectories()
+                keyPath.writeText(skinKey)
+            } else {
+                keyPath.deleteIfExists()
+            }
         } catch (e: Exception) {
-            LOGGER.warn("Failed to write avatar $uuid cache: ", e)
-            return null
+            LOGGER.warn("Failed to write avatar $uuid to cache: ", e)
+        }
+
+        return image
+    }
+
+    private fun avatarImage(uuid: UUID): UIImage =
+        avatarImages.get(uuid) {
+            UIImage(CompletableFuture.supplyAsync({ loadAvatar(uuid) }, ioExecutor), fallbackImage)
         }
 
+    /** Creates an image which receives its texture from the shared image of the given player. */
+    private fun createImage(uuid: UUID): UIImage {
+        // Never completes, the texture is supplied by the shared image of the player instead
+        val image = UIImage(CompletableFuture(), fallbackImage)
+        avatarImage(uuid).supply(image)
         return image
     }
 
     /**
      * Creates a [UIImage] component that will contain the head of the given user's skin for use as an avatar image.
      *
-     * The image will be cached for half an hour. If the cached image has expired, it will still be used as the loading
-     * image until a new one has been retrieved.
-     * If no old image is available (or not yet read from disk), a [BlurHashImage] is used as fallback.
+     * Avatars are stored on disk and only fetched again once the player's profile shows that their skin has changed.
+     * If no image is available (or not yet read from disk), a [BlurHashImage] is used as fallback.
      */
     @JvmStatic
     @Deprecated("Use create(uuid) instead", ReplaceWith("create(uuid)"))
     fun ofUUID(uuid: UUID): UIImage {
-        // The extra thenApply is required because UIImage calls obtrudeValue(null)
-        val freshFuture = freshCache[uuid].thenApply { it }
-        if (freshFuture.isDone) {
-            return UIImage(freshFuture.toCompletableFuture(), fallbackImage)
-        }
-        val diskFuture = diskCache[uuid].thenCompose {
-            it.map(::completedFuture).orElse(freshFuture)
-        }
-        return UIImage(freshFuture, UIImage(diskFuture, fallbackImage))
+        return createImage(uuid)
     }
 
     /**
@@ -134,22 +190,12 @@ object CachedAvatarImage {
      *
      * This component also gives a solid shadow when required by wrapping the UIImage in a UIContainer.
      *
-     * The image will be cached for half an hour. If the cached image has expired, it will still be used as the loading
-     * image until a new one has been retrieved.
-     * If no old image is available (or not yet read from disk), a [BlurHashImage] is used as fallback.
+     * Avatars are stored on disk and only fetched again once the player's profile shows that their skin has changed.
+     * If no image is available (or not yet read from disk), a [BlurHashImage] is used as fallback.
      */
     @JvmStatic
     fun create(uuid: UUID): UIComponent {
-        // The extra thenApply is required because UIImage calls obtrudeValue(null)
-        val freshFuture = freshCache[uuid].thenApply { it }
-        val image = if (freshFuture.isDone) {
-            UIImage(freshFuture.toCompletableFuture(), fallbackImage)
-        } else {
-            val diskFuture = diskCache[uuid].thenCompose {
-                it.map(::completedFuture).orElse(freshFuture)
-            }
-            UIImage(freshFuture, UIImage(diskFuture, fallbackImage))
-        }
+        val image = createImage(uuid)
         val uiContainer = UIContainer()
         uiContainer.layout(Modifier.width(8f).heightAspect(1f)) {
             image(Modifier.fillParent())
@@ -158,4 +204,7 @@ object CachedAvatarImage {
     }
 
     private fun UUID.toDashlessString() = toString().replace("-", "")
+
+    private const val DEFAULT_SKIN_KEY = "default"
+    private const val AVATAR_SIZE = 8
 }
@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.util
+
+import gg.essential.lib.gson.Gson
+import gg.essential.lib.gson.JsonElement
+import gg.essential.lib.gson.JsonParser
+import gg.essential.util.GuiEssentialPlatform.Companion.platform
+import gg.essential.util.UuidNameLookup.Profile
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.future.future
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import okhttp3.MediaType
+import okhttp3.Request
+import okhttp3.RequestBody
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.exists
+import kotlin.io.path.readText
+import kotlin.io.path.writeText
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Resolves between player names and UUIDs on behalf of [UuidNameLookup], trying hard to stay within the Mojang API rate
+ * limits even when a lot of players need to be resolved at once (e.g. opening a large friend list after a restart):
+ * - Results, including players which do not exist, are persisted to [cacheFile] and re-used across sessions. Names
+ *   which are older than [NAME_TTL_MS] are refreshed in the background, and are still used until that has finished.
+ *   Such refreshes only take up the rate limit when no lookups of players we know nothing about are waiting.
+ * - Lookups by name are collected for [BATCH_DELAY_MS] and then resolved in bulk, [BULK_LOOKUP_LIMIT] per request.
+ *   There is no bulk endpoint for lookups by UUID.
+ * - All requests are paced client-side, and are paused entirely while the API tells us we are being rate limited.
+ *
+ * The API base urls may be overwritten, so the resolver can be pointed at a local stand-in server.
+ */
+class ProfileResolver @JvmOverloads constructor(
+    private val sessionServerUrl: String = System.getProperty("essential.mojang.session_server", "https://sessionserver.mojang.com"),
+    private val apiUrl: String = System.getProperty("essential.mojang.api", "https://api.mojang.com"),
+    private val servicesUrl: String = System.getProperty("essential.mojang.services", "https://api.minecraftservices.com"),
+    private val cacheFile: Path? = platform.essentialBaseDir.resolve("profile-cache.json"),
+) {
+    private val gson = Gson()
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    private val lock = Any()
+    private val names = mutableMapOf<UUID, CachedName>()
+    private val uuids = mutableMapOf<String, UUID>()
+    private val missingUuids = mutableMapOf<UUID, Long>()
+    private val missingNames = mutableMapOf<String, Long>()
+    private var saveScheduled = false
+
+    private val pendingLock = Any()
+    private val pendingNames = mutableMapOf<String, CompletableFuture<Profile>>()
+    private var flushScheduled = false
+
+    private val pacer = Mutex()
+    private val refreshPacer = Mutex()
+    private val pacerLock = Any()
+    /** Amount of requests waiting in [acquire] which are not just refreshing data we already have. */
+    private var urgentWaiting = 0
+    private var tokens = BURST_REQUESTS.toDouble()
+    private var lastRefill = System.currentTimeMillis()
+    private var pausedUntil = 0L
+
+    init {
+        load()
+    }
+
+    /** Returns the cached name of the given player, if it has not yet expired (or [allowExpired] is set). */
+    fun getCachedName(uuid: UUID, allowExpired: Boolean): String? = synchronized(lock) {
+        val entry = names[uuid] ?: return null
+        entry.name.takeIf { allowExpired || System.currentTimeMillis() - entry.time < NAME_TTL_MS }
+    }
+
+    /** Returns the cached UUID of the player with the given name, if it has not yet expired. */
+    fun getCachedUuid(name: String): UUID? = synchronized(lock) {
+        val uuid = uuids[name.lowercase(Locale.ROOT)] ?: return null
+        val entry = names[uuid] ?: return null
+        uuid.takeIf { System.currentTimeMillis() - entry.time < NAME_TTL_MS }
+    }
+
+    fun store(uuid: UUID, name: String) {
+        val nameLower = name.lowercase(Locale.ROOT)
+        synchronized(lock) {
+            val previous = names.put(uuid, CachedName(name, System.currentTimeMillis()))
+            if (previous != null && previous.name.lowercase(Locale.ROOT) != nameLower) {
+                uuids.remove(previous.name.lowercase(Locale.ROOT), uuid)
+            }
+            uuids[nameLower] = uuid
+            missingUuids.remove(uuid)
+            missingNames.remove(nameLower)
+        }
+        scheduleSave()
+    }
+
+    /**
+     * Fetches the full profile of the given player, blocking the calling thread until it's done.
+     * To not block for an unbounded amount of time, the request skips the queue of pending lookups, and fails with a
+     * [RateLimitException] right away while we are being rate limited.
+     */
+    @Throws(PlayerNotFoundException::class, RateLimitException::class, IOException::class)
+    fun fetchProfile(uuid: UUID): Profile = runBlocking { fetch(uuid, Priority.Immediate) }
+
+    /** Fetches the full profile of the given player without blocking any thread while waiting for the pacer. */
+    fun fetchProfileAsync(uuid: UUID): CompletableFuture<Profile> = scope.future { fetch(uuid, Priority.Normal) }
+
+    /**
+     * Like [fetchProfileAsync], but for players we already have (possibly outdated) data on, so the request is only sent
+     * once no other requests are waiting.
+     */
+    fun refreshProfileAsync(uuid: UUID): CompletableFuture<Profile> = scope.future { fetch(uuid, Priority.Refresh) }
+
+    /**
+     * Fetches the profile of the player with the given name, blocking the calling thread until it's done.
+     * Like [fetchProfile] by UUID, this skips the queue of pending lookups.
+     */
+    @Throws(PlayerNotFoundException::class, RateLimitException::class, IOException::class)
+    fun fetchProfile(name: String): Profile = runBlocking { fetch(name, Priority.Immediate) }
+
+    private suspend fun fetch(uuid: UUID, priority: Priority): Profile {
+        if (isKnownMissing(missingUuids, uuid)) {
+            throw PlayerNotFoundException("Player not found")
+        }
+        val json = try {
+            request(Request.Builder().url("$sessionServerUrl/session/minecraft/profile/${uuid.toString().replace("-", "")}"), priority)
+        } catch (e: PlayerNotFoundException) {
+            markMissing(missingUuids, uuid)
+            throw e
+        }
+        val profile = parseProfile(json)
+        store(uuid, profile.name)
+        return profile
+    }
+
+    private suspend fun fetch(name: String, priority: Priority): Profile {
+        val nameLower = name.lowercase(Locale.ROOT)
+        if (isKnownMissing(missingNames, nameLower)) {
+            throw PlayerNotFoundException("Player not found")
+        }
+        val json = try {
+            request(Request.Builder().url("$apiUrl/users/profiles/minecraft/$nameLower"), priority)
+        } catch (e: PlayerNotFoundException) {
+            markMissing(missingNames, nameLower)
+            throw e
+        }
+        val profile = parseProfile(json)
+        store(parseUuid(profile.id), profile.name)
+        return profile
+    }
+
+    /**
+     * Looks up the profile (id and name only) of the player with the given name.
+     * Lookups are collected for a short while and then resolved in bulk.
+     */
+    fun lookupProfile(name: String): CompletableFuture<Profile> {
+        val nameLower = name.lowercase(Locale.ROOT)
+        if (isKnownMissing(missingNames, nameLower)) {
+            return CompletableFuture<Profile>().apply { completeExceptionally(PlayerNotFoundException("Player not found")) }
+        }
+        synchronized(pendingLock) {
+            pendingNames[nameLower]?.let { return it }
+            val future = CompletableFuture<Profile>()
+            pendingNames[nameLower] = future
+            if (!flushScheduled) {
+                flushScheduled = true
+                scope.launch {
+                    delay(BATCH_DELAY_MS)
+                    flushPendingNames()
+                }
+            }
+            return future
+        }
+    }
+
+    private suspend fun flushPendingNames() {
+        while (true) {
+            val batch = synchronized(pendingLock) {
+                if (pendingNames.isEmpty()) {
+                    flushScheduled = false
+                    return
+                }
+                val batch = pendingNames.entries.take(BULK_LOOKUP_LIMIT).associate { it.key to it.value }
+                batch.keys.forEach { pendingNames.remove(it) }
+                batch
+            }
+
+            val found = try {
+                lookupBulk(batch.keys)
+            } catch (e: Exception) {
+                batch.values.forEach { it.completeExceptionally(e) }
+                continue
+            }
+            for ((nameLower, future) in batch) {
+                val profile = found[nameLower]
+                if (profile != null) {
+                    future.complete(profile)
+                } else {
+                    markMissing(missingNames, nameLower)
+                    future.completeExceptionally(PlayerNotFoundException("Player not found"))
+                }
+            }
+        }
+    }
+
+    private suspend fun lookupBulk(names: Collection<String>): Map<String, Profile> {
+        val body = RequestBody.create(MediaType.parse("application/json"), gson.toJson(names))
+        val json = request(Request.Builder().url("$servicesUrl/minecraft/profile/lookup/bulk/byname").post(body))
+        if (!json.isJsonArray) {
+            throw APIException("Failed to load profiles: Invalid response")
+        }
+        return json.asJsonArray.associate { element ->
+            val profile = gson.fromJson(element, Profile::class.java)
+            store(parseUuid(profile.id), profile.name)
+            profile.name.lowercase(Locale.ROOT) to profile
+        }
+    }
+
+    private suspend fun request(builder: Request.Builder, priority: Priority = Priority.Normal): JsonElement {
+        acquire(priority)
+
+        val request = builder.header("Content-Type", "application/json").build()
+        return withContext(Dispatchers.IO) { execute(request) }
+    }
+
+    private fun execute(request: Request): JsonElement {
+        httpClient.join().newCall(request).execute().use { response ->
+            val json = response.body()?.string()
+
+            when (response.code()) {
+                204, 404 -> throw PlayerNotFoundException("Player not found")
+                429 -> {
+                    pause(response.header("Retry-After")?.toLongOrNull()?.let { TimeUnit.SECONDS.toMillis(it) })
+                    throw RateLimitException("Rate limit exceeded")
+                }
+            }
+            if (json == null) {
+                throw APIException("Failed to load profile: No response body")
+            }
+
+            val element = JsonParser.parseString(json)
+            if (element.isJsonObject && element.asJsonObject.has("errorMessage")) {
+                throw APIException("Failed to load profile: " + element.asJsonObject.get("errorMessage").asString)
+            }
+            return element
+        }
+    }
+
+    private fun parseProfile(json: JsonElement): Profile {
+        if (!json.isJsonObject) {
+            throw APIException("Failed to load profile: Invalid response")
+        }
+        return gson.fromJson(json, Profile::class.java)
+    }
+
+    /**
+     * Suspends until we may send another request, allowing for short bursts of up to [BURST_REQUESTS].
+     * Waiting requests queue up on [pacer] one after another, so no thread is held up while they wait.
+     * Refreshes queue up separately on [refreshPacer] and give way to all other requests.
+     * Immediate requests do not wait at all, they only count towards the limit for all other requests.
+     */
+    private suspend fun acquire(priority: Priority) {
+        when (priority) {
+            Priority.Immediate -> {
+                synchronized(pacerLock) {
+                    refill()
+                    if (System.currentTimeMillis() < pausedUntil) {
+                        throw RateLimitException("Rate limit exceeded")
+                    }
+                    tokens -= 1
+                }
+                return
+            }
+            Priority.Refresh -> {
+                refreshPacer.withLock { takeToken(refresh = true) }
+                return
+            }
+            Priority.Normal -> {}
+        }
+        synchronized(pacerLock) { urgentWaiting++ }
+        try {
+            pacer.withLock { takeToken(refresh = false) }
+        } finally {
+            synchronized(pacerLock) { urgentWaiting-- }
+        }
+    }
+
+    private suspend fun takeToken(refresh: Boolean) {
+        while (true) {
+            val waitMs = synchronized(pacerLock) {
+                val now = refill()
+                when {
+                    now < pausedUntil -> pausedUntil - now
+                    refresh && urgentWaiting > 0 -> (1000 / REQUESTS_PER_SECOND).toLong()
+                    tokens >= 1 -> {
+                        tokens -= 1
+                        return
+                    }
+                    else -> ((1 - tokens) / REQUESTS_PER_SECOND * 1000).toLong() + 1
+                }
+            }
+            delay(waitMs)
+        }
+    }
+
+    /** Adds the tokens accumulated since the last refill. Must hold [pacerLock]. Returns the current time. */
+    private fun refill(): Long {
+        val now = System.currentTimeMillis()
+        tokens = min(BURST_REQUESTS.toDouble(), tokens + (now - lastRefill) / 1000.0 * REQUESTS_PER_SECOND)
+        lastRefill = now
+        return now
+    }
+
+    private fun pause(retryAfterMs: Long?) {
+        LOGGER.warn("Rate limited by the Mojang API, pausing lookups for ${retryAfterMs ?: DEFAULT_BACKOFF_MS}ms")
+        synchronized(pacerLock) {
+            pausedUntil = max(pausedUntil, System.currentTimeMillis() + (retryAfterMs ?: DEFAULT_BACKOFF_MS))
+            tokens = 0.0
+        }
+    }
+
+    private fun <K> isKnownMissing(missing: MutableMap<K, Long>, key: K): Boolean = synchronized(lock) {
+        val since = missing[key] ?: return false
+        System.currentTimeMillis() - since < MISSING_TTL_MS
+    }
+
+    private fun <K> markMissing(missing: MutableMap<K, Long>, key: K) {
+        synchronized(lock) {
+            missing[key] = System.currentTimeMillis()
+        }
+        scheduleSave()
+    }
+
+    private fun load() {
+        if (cacheFile == null || !cacheFile.exists()) return
+        val data = try {
+            gson.fromJson(cacheFile.readText(), CacheData::class.java) ?: return
+        } catch (e: Exception) {
+            LOGGER.warn("Failed to load profile cache from $cacheFile", e)
+            return
+        }
+
+        val now = System.currentTimeMillis()
+        synchronized(lock) {
+            data.names?.forEach { (uuid, entry) ->
+                loadEntry(uuid) {
+                    val name: String? = entry?.name
+                    if (entry != null && name != null && now - entry.time < NAME_MAX_AGE_MS) {
+                        val parsed = UUID.fromString(uuid)
+                        names[parsed] = entry
+                        uuids[name.lowercase(Locale.ROOT)] = parsed
+                    }
+                }
+            }
+            data.missingUuids?.forEach { (uuid, time) ->
+                loadEntry(uuid) {
+                    if (time != null && now - time < MISSING_TTL_MS) missingUuids[UUID.fromString(uuid)] = time
+                }
+            }
+            data.missingNames?.forEach { (name, time) ->
+                loadEntry(name) {
+                    if (time != null && now - time < MISSING_TTL_MS) missingNames[name] = time
+                }
+            }
+        }
+    }
+
+    /** Loads a single cache entry, skipping it if it is invalid so one bad entry cannot take down the whole cache. */
+    private inline fun loadEntry(key: String?, block: () -> Unit) {
+        try {
+            block()
+        } catch (e: Exception) {
+            LOGGER.warn("Skipping invalid entry $key in profile cache $cacheFile", e)
+        }
+    }
+
+    private fun scheduleSave() {
+        if (cacheFile == null) return
+        synchronized(lock) {
+            if (saveScheduled) return
+            saveScheduled = true
+        }
+        scope.launch {
+            delay(SAVE_DELAY_MS)
+            save(cacheFile)
+        }
+    }
+
+    private fun save(cacheFile: Path) {
+        val json = synchronized(lock) {
+            saveScheduled = false
+            gson.toJson(CacheData(
+                names.mapKeys { it.key.toString() },
+                missingUuids.mapKeys { it.key.toString() },
+                missingNames.toMap(),
+            ))
+        }
+
+        try {
+            Files.createDirectories(cacheFile.parent)
+            val tempFile = Files.createTempFile(cacheFile.parent, "profile-cache", ".json")
+            try {
+                tempFile.writeText(json)
+                Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            } finally {
+                tempFile.deleteIfExists()
+            }
+        } catch (e: IOException) {
+            LOGGER.warn("Failed to save profile cache to $cacheFile", e)
+        }
+    }
+
+    private enum class Priority {
+        /** Blocking calls, which must not wait in the queue. */
+        Immediate,
+        Normal,
+        /** Refreshes of data we already have, which give way to all other requests. */
+        Refresh,
+    }
+
+    private class CachedName(val name: String, val time: Long)
+
+    // Values are nullable because Gson does not know about Kotlin's null-safety and the file may have been edited by hand
+    private class CacheData(
+        val names: Map<String, CachedName?>?,
+        val missingUuids: Map<String, Long?>?,
+        val missingNames: Map<String, Long?>?,
+    )
+
+    companion object {
+        private val LOGGER = LoggerFactory.getLogger(ProfileResolver::class.java)
+
+        /** Names may only be changed once every 30 days, so there is little point in checking them very often. */
+        private val NAME_TTL_MS = TimeUnit.DAYS.toMillis(1)
+        /** How long an expired name is kept around to use when the API cannot be reached. */
+        private val NAME_MAX_AGE_MS = TimeUnit.DAYS.toMillis(30)
+        private val MISSING_TTL_MS = TimeUnit.HOURS.toMillis(1)
+
+        private const val BULK_LOOKUP_LIMIT = 10
+        private const val BATCH_DELAY_MS = 50L
+        private const val SAVE_DELAY_MS = 5000L
+
+        /** Roughly matches the documented limit of 600 requests per 10 minutes. */
+        private const val REQUESTS_PER_SECOND = 1.0
+        private const val BURST_REQUESTS = 10
+        private val DEFAULT_BACKOFF_MS = TimeUnit.SECONDS.toMillis(30)
+
+        private fun parseUuid(id: String): UUID =
+            UUID(java.lang.Long.parseUnsignedLong(id.substring(0, 16), 16), java.lang.Long.parseUnsignedLong(id.substring(16), 16))
+    }
+}
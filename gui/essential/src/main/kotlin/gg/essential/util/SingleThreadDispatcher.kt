@@ -11,6 +11,7 @@
  */
 package gg.essential.util
 
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
@@ -32,6 +33,8 @@ class SingleThreadDispatcher(private val name: String) : CoroutineDispatcher() {
     private val lock = Any()
     private val queue = ArrayDeque<Runnable>()
     private var shutdownDelegate: CoroutineDispatcher? = null
+    /** Completed at the start of the next [runTasks] call, see [awaitNextRun]. */
+    private var nextRun = CompletableDeferred<Unit>()
 
     override fun dispatch(context: CoroutineContext, block: Runnable) {
         synchronized(lock) {
@@ -44,7 +47,17 @@ class SingleThreadDispatcher(private val name: String) : CoroutineDispatcher() {
         }
     }
 
+    /**
+     * Suspends until the next call of [runTasks] (or until [shutdown]).
+     * Unlike `delay` or `yield`, this will never resume within the current call, because any tasks queued while
+     * [runTasks] is running are run within that same call.
+     */
+    suspend fun awaitNextRun() {
+        synchronized(lock) { nextRun }.await()
+    }
+
     fun runTasks() {
+        synchronized(lock) { nextRun.also { nextRun = CompletableDeferred() } }.complete(Unit)
         while (true) {
             val task = synchronized(lock) {
                 check(shutdownDelegate == null) { "Dispatcher has been shut down" }
@@ -63,6 +76,7 @@ class SingleThreadDispatcher(private val name: String) : CoroutineDispatcher() {
                 // have queued another one between this synchronized block and the one in runTasks.
                 if (queue.isEmpty()) {
                     shutdownDelegate = Dispatchers.IO.limitedParallelism(1)
+                    nextRun.complete(Unit)
                     return
                 }
             }
@@ -34,6 +34,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.Locale;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
 import static gg.essential.util.image.bitmap.GuiEssentialExtensionsKt.toUImage;
@@ -49,6 +50,18 @@ import net.minecraft.client.renderer.ThreadDownloadImageData;
 public class MaskedSkinProvider {
     private static final DynamicTextureManager dynamicTextureManager = new DynamicTextureManager();
 
+    /**
+     * Masked skins shared between all providers, so players with the same skin and the same set of masks (e.g. many
+     * players joining a lobby with the same default skin and cosmetics) only need the mask to be applied once.
+     * Skin locations are derived from the skin hash, so they uniquely identify the skin content.
+     */
+    private static final Cache<GeneratedSkinKey, Bitmap> generatedSkins = Caffeine.newBuilder()
+        .maximumSize(64)
+        .expireAfterAccess(1, TimeUnit.MINUTES)
+        .executor(Multithreading.POOL)
+        .scheduler(Scheduler.forScheduledExecutorService(Multithreading.getScheduledPool()))
+        .build();
+
     private ResourceLocation generatedSkin;
     private SkinMask generatedConfig;
     private ResourceLocation generatedId;
@@ -107,8 +120,12 @@ public class MaskedSkinProvider {
         }
         //#endif
 
-        // All good, compute the masked skin, store it for later, and register it with MC
-        Bitmap generatedTexture = config.apply(new UImageBitmap(skinImage));
+        // All good, compute the masked skin (or re-use one computed for another player), store it for later, and
+        // register it with MC
+        Bitmap generatedTexture = generatedSkins.get(
+            new GeneratedSkinKey(skin, config),
+            key -> config.apply(new UImageBitmap(skinImage))
+        );
         generatedSkin = skin;
         generatedConfig = config;
         generatedId = dynamicTextureManager.generateUniqueId(generatedSkin.toString().replace(':', '/'));
@@ -132,6 +149,29 @@ public class MaskedSkinProvider {
         Minecraft.getMinecraft().getTextureManager().deleteTexture(id);
     }
 
+    private static class GeneratedSkinKey {
+        private final ResourceLocation skin;
+        private final SkinMask config;
+
+        GeneratedSkinKey(ResourceLocation skin, SkinMask config) {
+            this.skin = skin;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof GeneratedSkinKey)) return false;
+            GeneratedSkinKey that = (GeneratedSkinKey) o;
+            return skin.equals(that.skin) && config.equals(that.config);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(skin, config);
+        }
+    }
+
     private static class DynamicTextureManager implements RemovalListener<MaskedSkinProvider, ResourceLocation> {
         private final Cache<MaskedSkinProvider, ResourceLocation> loaded = Caffeine.newBuilder()
             .expireAfterAccess(1, TimeUnit.MINUTES)
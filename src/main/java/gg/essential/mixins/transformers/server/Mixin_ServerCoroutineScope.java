@@ -13,7 +13,6 @@ package gg.essential.mixins.transformers.server;
 
 import gg.essential.mixins.ext.server.MinecraftServerExt;
 import gg.essential.util.SingleThreadDispatcher;
-import kotlinx.coroutines.CoroutineDispatcher;
 import kotlinx.coroutines.CoroutineScope;
 import net.minecraft.server.MinecraftServer;
 import org.jetbrains.annotations.NotNull;
@@ -65,7 +64,7 @@ public abstract class Mixin_ServerCoroutineScope implements MinecraftServerExt {
 
     @NotNull
     @Override
-    public CoroutineDispatcher getEssential$dispatcher() {
+    public SingleThreadDispatcher getEssential$dispatcher() {
         return dispatcher;
     }
 
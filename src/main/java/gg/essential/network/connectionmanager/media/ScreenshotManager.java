@@ -46,6 +46,7 @@ import gg.essential.handlers.io.DirectoryWatcher;
 import gg.essential.handlers.io.FileSystemEvent;
 import gg.essential.handlers.screenshot.ClientScreenshotMetadata;
 import gg.essential.handlers.screenshot.FileSystemEventKt;
+import gg.essential.handlers.screenshot.ParallelPngEncoder;
 import gg.essential.handlers.screenshot.ScreenshotUploadUtil;
 import gg.essential.image.imagescaling.ResampleOp;
 import gg.essential.media.model.Media;
@@ -82,7 +83,7 @@ import org.jetbrains.annotations.Nullable;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
@@ -154,19 +155,49 @@ public class ScreenshotManager implements NetworkedManager, IScreenshotManager {
     }
 
     private void preloadScreenshots() {
-        // Primes the cache with all screenshot metadata
+        // The catalog from the last session is available right away, the listing below only verifies it
+        for (String name : screenshotChecksumManager.getFileNames()) {
+            if (fileNameMatchesImage(name)) {
+                screenshotFiles.add(name);
+            }
+        }
+
         File[] files = HelpersKt.getScreenshotFolder().listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (!fileNameMatchesImage(file.getName())) {
-                    continue;
-                }
+        if (files == null) {
+            return;
+        }
 
-                screenshotFiles.add(file.getName());
-                precompute(file);
-                getScreenshotMetadataManager().getMetadata(file);
+        List<File> images = new ArrayList<>();
+        for (File file : files) {
+            if (fileNameMatchesImage(file.getName())) {
+                images.add(file);
             }
         }
+
+        Set<Path> deletedPaths = new HashSet<>();
+        for (String name : screenshotChecksumManager.reconcile(images)) {
+            if (screenshotFiles.remove(name)) {
+                deletedPaths.add(HelpersKt.getScreenshotFolder().toPath().resolve(name));
+            }
+        }
+
+        boolean anyNewItems = false;
+        for (File file : images) {
+            if (screenshotFiles.add(file.getName())) {
+                anyNewItems = true;
+            }
+        }
+
+        if (anyNewItems || !deletedPaths.isEmpty()) {
+            ScreenshotCollectionChangeEvent event = new ScreenshotCollectionChangeEvent(anyNewItems, deletedPaths);
+            ExtensionsKt.getExecutor(Minecraft.getMinecraft()).execute(() -> callScreenshotCollectionChangeHandlers(event));
+        }
+
+        // Primes the cache with all screenshot metadata
+        for (File file : images) {
+            precompute(file);
+            getScreenshotMetadataManager().getMetadata(file);
+        }
     }
 
     private boolean fileNameMatchesImage(String fileName) {
@@ -216,7 +247,7 @@ public class ScreenshotManager implements NetworkedManager, IScreenshotManager {
                 }
             } else {
                 progressConsumer.accept(new ScreenshotUploadToast.ToastProgress.Step(25));
-                Multithreading.runAsync(() -> upload(path, metadata, (ServerMediaUploadUrlPacket) packet, progressConsumer, uploadFuture));
+                ScreenshotUploadUtil.executor.execute(() -> upload(path, metadata, (ServerMediaUploadUrlPacket) packet, progressConsumer, uploadFuture));
             }
         });
         uploadFuture.whenCompleteAsync((media, throwable) -> {
@@ -339,7 +370,16 @@ public class ScreenshotManager implements NetworkedManager, IScreenshotManager {
 
     private void upload(Path path, @NotNull ClientScreenshotMetadata metadata, ServerMediaUploadUrlPacket packet, Consumer<ScreenshotUploadToast.ToastProgress> progressConsumer, CompletableFuture<Media> uploadFuture) {
         try {
-            if (ScreenshotUploadUtil.INSTANCE.httpUpload(packet.getUploadUrl(), FileUtils.readFileToByteArray(path.toFile()))) {
+            int[] lastPercent = {25};
+            ScreenshotUploadUtil.ProgressListener progressListener = (bytesSent, bytesTotal) -> {
+                // The upload itself makes up the part of the progress bar between 25% and 50%
+                int percent = 25 + (int) (25 * bytesSent / Math.max(bytesTotal, 1));
+                if (percent != lastPercent[0]) {
+                    lastPercent[0] = percent;
+                    progressConsumer.accept(new ScreenshotUploadToast.ToastProgress.Step(percent));
+                }
+            };
+            if (ScreenshotUploadUtil.INSTANCE.httpUpload(packet.getUploadUrl(), path, progressListener)) {
                 progressConsumer.accept(new ScreenshotUploadToast.ToastProgress.Step(50));
                 // Successful upload
                 UUIDUtil.getName(metadata.getAuthorId()).whenCompleteAsync((username, throwable) -> {
@@ -447,18 +487,26 @@ public class ScreenshotManager implements NetworkedManager, IScreenshotManager {
     }
 
     /**
-     * Saves the content of the provided image
+     * Saves the given image file, copying it as is if it already is a PNG and re-encoding it otherwise
      */
-    public CompletableFuture<Void> saveDownloadedImageAsync(RenderedImage img) {
+    public CompletableFuture<Void> saveDownloadedImageAsync(Path source) {
         CompletableFuture<Void> future = new CompletableFuture<>();
         Multithreading.runAsync(() -> {
             try {
                 File imgFile = getDownloadedName(new SimpleDateFormat("yyyy-MM-dd_HH.mm.ss").format(new Date()));
-                saveScreenshot(img, imgFile);
+                byte[] bytes = Files.readAllBytes(source);
+                if (ParallelPngEncoder.isPng(bytes)) {
+                    FileUtils.writeByteArrayToFile(imgFile, bytes);
+                } else {
+                    BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+                    if (image == null) {
+                        throw new IOException("Unsupported image format: " + source);
+                    }
+                    saveScreenshot(image, imgFile);
+                }
                 future.complete(null);
             } catch (IOException e) {
                 future.completeExceptionally(e);
-                throw new RuntimeException(e);
             }
         });
         return future;
@@ -522,9 +570,7 @@ public class ScreenshotManager implements NetworkedManager, IScreenshotManager {
      * @return File checksum of newly saved file
      */
     private String saveScreenshot(RenderedImage image, File destination) throws IOException {
-        final ByteArrayOutputStream os = new ByteArrayOutputStream();
-        ImageIO.write(image, "png", os);
-        final byte[] data = os.toByteArray();
+        final byte[] data = ParallelPngEncoder.encode(image);
         FileUtils.writeByteArrayToFile(destination, data);
         return DigestUtils.md5Hex(data);
     }
@@ -602,6 +648,7 @@ public class ScreenshotManager implements NetworkedManager, IScreenshotManager {
             }
             switch (event.getEventType()) {
                 case CREATE: {
+                    screenshotChecksumManager.invalidate(event.getPath().getFileName().toString());
                     if (screenshotFiles.add(event.getPath().getFileName().toString())) {
                         anyNewItems = true;
                     }
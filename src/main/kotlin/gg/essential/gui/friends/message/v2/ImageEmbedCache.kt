@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.gui.friends.message.v2
+
+import gg.essential.Essential
+import gg.essential.gui.friends.message.MessageUtils
+import gg.essential.lib.caffeine.cache.AsyncLoadingCache
+import gg.essential.lib.caffeine.cache.Caffeine
+import gg.essential.util.Multithreading
+import gg.essential.util.httpCall
+import gg.essential.util.httpGet
+import kotlinx.coroutines.runBlocking
+import okhttp3.Request
+import okhttp3.Response
+import org.apache.commons.codec.digest.DigestUtils
+import java.awt.RenderingHints
+import java.awt.image.BufferedImage
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import javax.imageio.ImageIO
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.exists
+import kotlin.io.path.getLastModifiedTime
+import kotlin.io.path.inputStream
+import kotlin.io.path.isRegularFile
+import kotlin.io.path.readText
+import kotlin.io.path.setLastModifiedTime
+import kotlin.io.path.writeBytes
+import kotlin.io.path.writeText
+import kotlin.math.max
+
+/**
+ * Caches the images embedded in chat messages, so scrolling back through a channel does not download and decode every
+ * image again.
+ *
+ * Remote images are stored on disk in [directory], in one directory per url, containing the original image (after
+ * following any `og:image` metadata), a [DISPLAY_MAX_SIZE] downscaled variant and the ETag the server sent for it.
+ * Entries with an ETag are revalidated at most once every [REVALIDATE_AFTER_MS], entries which have not been used for
+ * [PRUNE_AFTER_MS] are deleted.
+ *
+ * Decoded display variants are additionally kept in memory, bounded by their total pixel count. Concurrent loads of
+ * the same image share a single future.
+ */
+internal class ImageEmbedCache(private val directory: Path) {
+
+    sealed interface Source
+    data class Remote(val url: String) : Source
+    data class Local(val path: Path) : Source
+
+    private val displayImages: AsyncLoadingCache<Source, BufferedImage> = Caffeine.newBuilder()
+        .maximumWeight(MAX_CACHED_PIXELS)
+        .weigher<Source, BufferedImage> { _, image -> image.width * image.height }
+        .executor(Multithreading.POOL)
+        .buildAsync { source -> loadDisplayImage(source) }
+
+    private val locks = Array(16) { Any() }
+
+    init {
+        Multithreading.runAsync { prune() }
+    }
+
+    /**
+     * Loads the display-sized variant of the given image.
+     * Completes with `null` if the image failed to load, or with [NO_IMAGE] if there is no image at the given url.
+     */
+    fun getDisplayImage(source: Source): CompletableFuture<BufferedImage?> = displayImages.get(source)
+
+    /**
+     * Loads the full-size original of the given image, blocking until it is available.
+     */
+    fun getOriginalImage(source: Source): BufferedImage? = when (source) {
+        is Local -> readImage(source.path)
+        is Remote -> {
+            val entry = Entry(source.url)
+            if (updateOriginal(entry) == true) readImage(entry.original) else null
+        }
+    }
+
+    /**
+     * Returns the file holding the unmodified bytes of the given image, blocking until it is available.
+     */
+    fun getOriginalFile(source: Source): Path? = when (source) {
+        is Local -> source.path.takeIf { it.isRegularFile() }
+        is Remote -> {
+            val entry = Entry(source.url)
+            if (updateOriginal(entry) == true) entry.original else null
+        }
+    }
+
+    private fun loadDisplayImage(source: Source): BufferedImage? {
+        return when (source) {
+            is Local -> {
+                if (!source.path.isRegularFile()) {
+                    Essential.logger.debug("Local image path does not point to a file: {}", source.path)
+                    return null
+                }
+                readImage(source.path)?.let { downscale(it, DISPLAY_MAX_SIZE) }
+            }
+            is Remote -> {
+                val entry = Entry(source.url)
+                when (updateOriginal(entry)) {
+                    null -> return null
+                    false -> return NO_IMAGE
+                    true -> {}
+                }
+                if (entry.display.exists()) {
+                    readImage(entry.display)?.let { return it }
+                }
+                val original = readImage(entry.original) ?: return null
+                val display = downscale(original, DISPLAY_MAX_SIZE)
+                if (display !== original) {
+                    try {
+                        ImageIO.write(display, "png", entry.display.toFile())
+                    } catch (e: IOException) {
+                        Essential.logger.debug("Failed to cache downscaled image for ${source.url}", e)
+                    }
+                }
+                display
+            }
+        }
+    }
+
+    /**
+     * Makes sure the disk cache holds an up-to-date copy of the image at the entry's url.
+     * Returns `true` if there is an image, `false` if the url was reachable but does not point to an image, and `null`
+     * if it could not be fetched.
+     */
+    private fun updateOriginal(entry: Entry): Boolean? = synchronized(entry.lock) {
+        val marker = when {
+            entry.original.exists() -> entry.original
+            entry.none.exists() -> entry.none
+            else -> null
+        }
+
+        if (marker != null) {
+            // Mark as recently used so it does not get pruned
+            marker.setLastModifiedTime(FileTime.fromMillis(System.currentTimeMillis()))
+
+            val etag = if (entry.etag.exists()) entry.etag.readText() else null
+            if (etag == null || System.currentTimeMillis() - entry.etag.getLastModifiedTime().toMillis() < REVALIDATE_AFTER_MS) {
+                return marker == entry.original
+            }
+
+            return try {
+                runBlocking { httpCall(Request.Builder().url(entry.url).header("If-None-Match", etag).build()) }.use { response ->
+                    when {
+                        response.code() == 304 -> {
+                            entry.etag.setLastModifiedTime(FileTime.fromMillis(System.currentTimeMillis()))
+                            marker == entry.original
+                        }
+                        // Keep using what we have, it is better than nothing
+                        !response.isSuccessful -> marker == entry.original
+                        else -> store(entry, response)
+                    }
+                }
+            } catch (e: IOException) {
+                Essential.logger.debug("Error revalidating image ${entry.url}", e)
+                marker == entry.original
+            }
+        }
+
+        return try {
+            runBlocking { httpGet(entry.url) }.use { store(entry, it) }
+        } catch (e: IOException) {
+            Essential.logger.debug("Error downloading image", e)
+            null
+        }
+    }
+
+    private fun store(entry: Entry, response: Response): Boolean? {
+        val bytes = response.body()!!.bytes()
+
+        val imageBytes = if (isImage(bytes)) {
+            bytes
+        } else {
+            // Follow metadata if present
+            val embedUrl = MessageUtils.imageEmbedRegex.find(String(bytes))?.groups?.get("url")?.value
+            if (embedUrl == null || !MessageUtils.URL_REGEX.matches(embedUrl)) {
+                null
+            } else {
+                runBlocking { httpGet(embedUrl) }.use { it.body()!!.bytes() }.takeIf { isImage(it) } ?: return null
+            }
+        }
+
+        Files.createDirectories(entry.directory)
+        entry.display.deleteIfExists()
+        if (imageBytes != null) {
+            val tmpFile = Files.createTempFile(entry.directory, "original", ".tmp")
+            tmpFile.writeBytes(imageBytes)
+            Files.move(tmpFile, entry.original, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            entry.none.deleteIfExists()
+        } else {
+            Files.write(entry.none, ByteArray(0))
+            entry.original.deleteIfExists()
+        }
+        val etag = response.header("ETag")
+        if (etag != null) {
+            entry.etag.writeText(etag)
+        } else {
+            entry.etag.deleteIfExists()
+        }
+        return imageBytes != null
+    }
+
+    private fun prune() {
+        val now = System.currentTimeMillis()
+        val entries = try {
+            Files.newDirectoryStream(directory).use { it.toList() }
+        } catch (e: IOException) {
+            return // nothing cached yet
+        }
+        for (entryDirectory in entries) {
+            try {
+                val lastUsed = listOf("original", "none")
+                    .map { entryDirectory.resolve(it) }
+                    .filter { it.exists() }
+                    .maxOfOrNull { it.getLastModifiedTime().toMillis() }
+                    ?: 0
+                if (now - lastUsed > PRUNE_AFTER_MS) {
+                    entryDirectory.toFile().deleteRecursively()
+                }
+            } catch (e: IOException) {
+                Essential.logger.debug("Failed to prune image embed cache entry $entryDirectory", e)
+            }
+        }
+    }
+
+    private inner class Entry(val url: String) {
+        private val hash = DigestUtils.sha1Hex(url)
+        val lock = locks[hash.hashCode() and (locks.size - 1)]
+        val directory: Path = this@ImageEmbedCache.directory.resolve(hash)
+        val original: Path = directory.resolve("original")
+        val display: Path = directory.resolve("display.png")
+        val etag: Path = directory.resolve("etag")
+        /** Marker that the url was fetched successfully but does not contain an image. */
+        val none: Path = directory.resolve("none")
+    }
+
+    companion object {
+        /** Used to denote that no image should be displayed because the url does not point to one. */
+        val NO_IMAGE = BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB)
+
+        /** Largest width or height of the variant of images which is displayed in chat. */
+        private const val DISPLAY_MAX_SIZE = 1280
+        private const val MAX_CACHED_PIXELS = 16L * 1024 * 1024
+        private val REVALIDATE_AFTER_MS = TimeUnit.DAYS.toMillis(1)
+        private val PRUNE_AFTER_MS = TimeUnit.DAYS.toMillis(30)
+
+        private fun isImage(bytes: ByteArray): Boolean =
+            ImageIO.createImageInputStream(ByteArrayInputStream(bytes))?.use { ImageIO.getImageReaders(it).hasNext() } ?: false
+
+        private fun readImage(path: Path): BufferedImage? {
+            return try {
+                path.inputStream().use { ImageIO.read(it) }
+            } catch (e: Exception) {
+                Essential.logger.error("Error loading image from $path", e)
+                null
+            }
+        }
+
+        /**
+         * Scales [image] down so neither side is larger than [maxSize], halving it repeatedly so the bilinear filter
+         * never skips over source pixels.
+         */
+        private fun downscale(image: BufferedImage, maxSize: Int): BufferedImage {
+            val scale = maxSize.toFloat() / max(image.width, image.height)
+            if (scale >= 1) return image
+
+            val targetWidth = max(1, (image.width * scale).toInt())
+            val targetHeight = max(1, (image.height * scale).toInt())
+            var result = image
+            do {
+                val width = max(targetWidth, result.width / 2)
+                val height = max(targetHeight, result.height / 2)
+                val scaled = BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB)
+                val graphics = scaled.createGraphics()
+                try {
+                    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR)
+                    graphics.drawImage(result, 0, 0, width, height, null)
+                } finally {
+                    graphics.dispose()
+                }
+                result = scaled
+            } while (width != targetWidth || height != targetHeight)
+            return result
+        }
+    }
+}
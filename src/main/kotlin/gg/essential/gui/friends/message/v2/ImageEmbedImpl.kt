@@ -43,15 +43,11 @@ import net.minecraft.client.Minecraft
 import org.apache.commons.io.FileUtils
 import java.awt.Color
 import java.awt.image.BufferedImage
-import java.io.ByteArrayInputStream
 import java.io.IOException
 import java.net.URL
 import java.nio.file.Files
-import java.nio.file.Path
 import java.util.concurrent.CompletableFuture
 import javax.imageio.ImageIO
-import kotlin.io.path.inputStream
-import kotlin.io.path.isRegularFile
 
 class ImageEmbedImpl(
     url: URL,
@@ -60,6 +56,7 @@ class ImageEmbedImpl(
 
     private val loadingState = BasicState(false)
     private var loadedImage: BufferedImage? = null
+    private var loadedSource: ImageEmbedCache.Source? = null
     private var loading: Int? = null
 
     private val aspectRatio = BasicState(9 / 16f)
@@ -104,17 +101,37 @@ class ImageEmbedImpl(
         val localPaths = MessageUtils.SCREENSHOT_URL_REGEX.find(url.toString())
             ?.let { Essential.getInstance().connectionManager.screenshotManager.getUploadedLocalPathsCache(it.groupValues[1]) }
             ?: emptyList()
-        Multithreading.runAsync {
-            loadImage(nextId, localPaths.firstNotNullOfOrNull { fetchLocalImage(it) } ?: fetchRemoteImage())
+        val sources = localPaths.map { ImageEmbedCache.Local(it) } + ImageEmbedCache.Remote(url.toString())
+        loadFirstAvailable(sources).thenAccept { (source, image) ->
+            loadImage(nextId, source, image)
+        }
+    }
+
+    /**
+     * Loads the display image of the first of the given sources which can be loaded, falling back to the next one if it
+     * fails.
+     */
+    private fun loadFirstAvailable(
+        sources: List<ImageEmbedCache.Source>,
+    ): CompletableFuture<Pair<ImageEmbedCache.Source, BufferedImage?>> {
+        val source = sources.first()
+        return imageCache.getDisplayImage(source).handle { image, _ -> image }.thenCompose { image ->
+            if (image == null && sources.size > 1) {
+                loadFirstAvailable(sources.drop(1))
+            } else {
+                CompletableFuture.completedFuture(Pair(source, image))
+            }
         }
     }
 
     override fun copyImageToClipboard() {
-        val loadedImage = loadedImage
-        if (loadedImage != null && loadedImage != noImage) {
+        val source = loadedSource
+        if (source != null && loadedImage != null && loadedImage != ImageEmbedCache.NO_IMAGE) {
             Multithreading.runAsync {
+                // The loaded image may have been downscaled for display, so fetch the original
+                val original = imageCache.getOriginalImage(source) ?: return@runAsync
                 val tempFile = Files.createTempFile("essential-screenshot", "png").toFile()
-                ImageIO.write(loadedImage, "png", tempFile)
+                ImageIO.write(original, "png", tempFile)
                 Minecraft.getMinecraft().executor.execute {
                     copyScreenshotToClipboard(tempFile.toPath())
                     // Cleanup temp file
@@ -125,9 +142,15 @@ class ImageEmbedImpl(
     }
 
     override fun saveImageToScreenshotBrowser() {
-        val loadedImage = loadedImage
-        if (loadedImage != null && loadedImage != noImage) {
-            val future = Essential.getInstance().connectionManager.screenshotManager.saveDownloadedImageAsync(loadedImage)
+        val source = loadedSource
+        if (source != null && loadedImage != null && loadedImage != ImageEmbedCache.NO_IMAGE) {
+            val future = CompletableFuture.supplyAsync({
+                // The loaded image may have been downscaled for display, so save the original file, which also saves
+                // us from re-encoding it if it already is a PNG
+                imageCache.getOriginalFile(source) ?: throw IOException("Failed to load original image $url")
+            }, Multithreading.POOL).thenCompose {
+                Essential.getInstance().connectionManager.screenshotManager.saveDownloadedImageAsync(it)
+            }
             future.whenComplete { _, throwable ->
                 if (throwable == null) {
                     Notifications.push(
@@ -149,62 +172,7 @@ class ImageEmbedImpl(
         highlightedState.set(false)
     }
 
-    private fun download(): BufferedImage? {
-        val original = httpGetToBytesBlocking(url.toString())
-
-        try {
-            ImageIO.read(ByteArrayInputStream(original))?.let { return it }
-        } catch (e: Exception) {
-            Essential.logger.debug("Error parsing image", e)
-        }
-
-        // Follow metadata if present
-        val responseString = String(original)
-        val embedUrlMatcher = MessageUtils.imageEmbedRegex.find(responseString) ?: return noImage
-        val embedUrl = embedUrlMatcher.groups["url"]?.value ?: return noImage
-        if (!MessageUtils.URL_REGEX.matches(embedUrl)) {
-            return noImage
-        }
-
-        val embedUrlBytes = httpGetToBytesBlocking(embedUrl)
-
-        return try {
-            ImageIO.read(ByteArrayInputStream(embedUrlBytes))
-        } catch (e: Exception) {
-            Essential.logger.debug("Error parsing image", e)
-            null
-        }
-    }
-
-    /**
-     * Attempts to fetch local image and returns BufferedImage if successful
-     */
-    private fun fetchLocalImage(localPath: Path): BufferedImage? {
-        return try {
-            if (!localPath.isRegularFile()) {
-                Essential.logger.debug("Local image path does not point to a file: {}", localPath)
-                return null
-            }
-            localPath.inputStream().use { ImageIO.read(it) }
-        } catch (e: Exception) {
-            Essential.logger.error("Error loading local image using path: $localPath", e)
-            null
-        }
-    }
-
-    /**
-     * Attempts to download remote image and returns BufferedImage if successful
-     */
-    private fun fetchRemoteImage(): BufferedImage? {
-        return try {
-            download()
-        } catch (e: IOException) {
-            Essential.logger.debug("Error downloading image", e)
-            null
-        }
-    }
-
-    private fun loadImage(id: Int, loadedImage: BufferedImage?) {
+    private fun loadImage(id: Int, source: ImageEmbedCache.Source, loadedImage: BufferedImage?) {
         maybeLoadUIImage(loadedImage) { uiImage ->
             if (id != loading) {
                 return@maybeLoadUIImage
@@ -213,8 +181,9 @@ class ImageEmbedImpl(
             loadingState.set(false)
 
             this.loadedImage = loadedImage
+            this.loadedSource = source
 
-            if (loadedImage == noImage) {
+            if (loadedImage == ImageEmbedCache.NO_IMAGE) {
                 return@maybeLoadUIImage
             }
 
@@ -406,8 +375,8 @@ class ImageEmbedImpl(
         private var nextLoadingId: Int = 0
         private const val animationTime = 0.25f
 
-        // Used to denote that no image should be displayed. This is returned by download()
-        // when the web page is successfully fetched, but no image is found.
-        private val noImage = BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB)
+        private val imageCache by lazy {
+            ImageEmbedCache(Essential.getInstance().baseDir.toPath().resolve("image-embed-cache"))
+        }
     }
 }
@@ -49,8 +49,8 @@ import io.netty.buffer.ByteBufAllocator
 import io.netty.buffer.PooledByteBufAllocator
 import java.awt.Color
 import java.io.File
-import java.nio.file.Files
 import java.nio.file.Path
+import kotlin.math.abs
 
 /**
  * Manages the staged image loading providers for the Screenshot Manager
@@ -177,13 +177,36 @@ class ScreenshotProviderManager(
         return ScopeExpansionWindowProvider(
             MinecraftWindowedTextureProvider(
                 ThreadedWindowedProvider(
-                    createFileCachedBicubicProvider(roundResolutionToCommonValues(resolution)), pool, PrioritizedCallable.REGULAR
+                    createFileCachedBicubicProvider(roundResolutionToCommonValues(resolution)),
+                    pool,
+                    PrioritizedCallable.REGULAR,
+                    // Items flying past are only shown at the minimum resolution, no need to load them in full
+                    ::isScrollingFast,
                 ),
             ),
             1f,
+            scrollVelocity = ::scrollVelocity,
         )
     }
 
+    /**
+     * The speed at which the list view is currently scrolling, in items per second (positive towards higher indices).
+     */
+    private fun scrollVelocity(): Float {
+        val window = renderedLastFrame ?: return 0f
+        val viewportHeight = scroller.getHeight()
+        if (viewportHeight <= 0f) return 0f
+        val visibleItems = window.range.last - window.range.first + 1
+        return scroller.verticalVelocity / viewportHeight * visibleItems
+    }
+
+    /**
+     * Whether the list view is scrolling by more than [FAST_SCROLL_VIEWPORTS_PER_SECOND] screens worth of content per
+     * second, in which case items will only be visible for a short time and we skip loading their full resolution.
+     */
+    private fun isScrollingFast(): Boolean =
+        abs(scroller.verticalVelocity) > scroller.getHeight() * FAST_SCROLL_VIEWPORTS_PER_SECOND
+
     init {
         reloadItems()
         updateItems(allPaths)
@@ -385,6 +408,8 @@ class ScreenshotProviderManager(
 
         val MAX_MEMORY = (System.getProperty("essential.screenshots.max_mem_mb")?.toLong() ?: 100) * 1_000_000
 
+        private const val FAST_SCROLL_VIEWPORTS_PER_SECOND = 1.5f
+
         @JvmOverloads
         fun createFileCachedBicubicProvider(
             targetResolution: Pair<Int, Int>,
@@ -395,20 +420,26 @@ class ScreenshotProviderManager(
             precomputeOnly: Boolean = false,
         ): FileCachedWindowedImageProvider {
             val (targetWidth, targetHeight) = targetResolution
+            val cacheDirectory = essentialDir.toPath().resolve("screenshot-cache")
             return FileCachedWindowedImageProvider(
                 PostProcessWindowedImageProvider(
-                    CloudflareImageProvider(
-                        DiskWindowedImageProvider(nativeImageReader, alloc),
+                    // Prefer deriving the image from an already cached larger size over decoding the original again
+                    LargerCachedImageProvider(
+                        CloudflareImageProvider(
+                            DiskWindowedImageProvider(nativeImageReader, alloc, targetResolution),
+                            nativeImageReader,
+                            alloc,
+                            targetResolution,
+                        ),
+                        cacheDirectory,
+                        targetResolution,
                         nativeImageReader,
                         alloc,
-                        targetResolution,
                     ),
                     PostProcessWindowedImageProvider.bicubicFilter(targetWidth, targetHeight)
                 ),
                 FileCachedWindowedImageProvider.inDirectory(
-                    essentialDir.toPath().resolve("screenshot-cache")
-                        .resolve("bicubic_${targetWidth}x$targetHeight")
-                        .also(Files::createDirectories)
+                    LargerCachedImageProvider.bucketDirectory(cacheDirectory, targetWidth, targetHeight)
                 ),
                 pool,
                 nativeImageReader,
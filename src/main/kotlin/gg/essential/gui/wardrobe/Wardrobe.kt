@@ -24,6 +24,7 @@ import gg.essential.elementa.effects.ScissorEffect
 import gg.essential.gui.EssentialPalette
 import gg.essential.gui.InternalEssentialGUI
 import gg.essential.gui.common.ContextOptionMenu
+import gg.essential.gui.common.CosmeticPreview
 import gg.essential.gui.common.EssentialCollapsibleSearchbar
 import gg.essential.gui.common.EssentialDropDown
 import gg.essential.gui.common.MenuButton
@@ -362,6 +363,8 @@ class Wardrobe(
 
         Essential.getInstance().connectionManager.noticesManager.flushDismissNotices()
 
+        CosmeticPreview.clearSnapshots()
+
         super.onScreenClose()
     }
 
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.handlers.screenshot
+
+import gg.essential.util.Multithreading
+import java.awt.geom.AffineTransform
+import java.awt.image.BufferedImage
+import java.awt.image.RenderedImage
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.zip.Adler32
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Encodes images as PNG, compressing independent blocks of rows in parallel.
+ *
+ * Like pigz, each block is deflated on its own, primed with the last 32KiB of the previous block as dictionary so
+ * there is next to no loss in compression ratio, and all but the last block end in a sync flush, so the concatenated
+ * blocks form a single valid zlib stream.
+ */
+object ParallelPngEncoder {
+    private val SIGNATURE = byteArrayOf(-119, 'P'.code.toByte(), 'N'.code.toByte(), 'G'.code.toByte(), 13, 10, 26, 10)
+
+    private const val COLOR_TYPE_RGB = 2
+    private const val COLOR_TYPE_RGBA = 6
+
+    /** Amount of (filtered) image data deflated per task, same as pigz uses. */
+    private const val BLOCK_SIZE = 128 * 1024
+    private const val DICTIONARY_SIZE = 32 * 1024
+
+    /** Unlike ImageIO, which always uses the slowest level, we default to the level zlib considers balanced. */
+    @JvmField
+    val DEFAULT_LEVEL = System.getProperty("essential.screenshots.png_compression_level")?.toIntOrNull()?.coerceIn(0, 9) ?: 6
+
+    /** Returns whether the given bytes start with the PNG signature. */
+    @JvmStatic
+    fun isPng(bytes: ByteArray): Boolean =
+        bytes.size >= SIGNATURE.size && SIGNATURE.indices.all { bytes[it] == SIGNATURE[it] }
+
+    @JvmStatic
+    @JvmOverloads
+    fun encode(renderedImage: RenderedImage, level: Int = DEFAULT_LEVEL): ByteArray {
+        val image = renderedImage as? BufferedImage ?: toBufferedImage(renderedImage)
+        val width = image.width
+        val height = image.height
+        val hasAlpha = image.colorModel.hasAlpha()
+        val channels = if (hasAlpha) 4 else 3
+        val stride = width * channels
+
+        val rowsPerBlock = max(1, BLOCK_SIZE / (stride + 1))
+        val blockCount = (height + rowsPerBlock - 1) / rowsPerBlock
+
+        val filteredBlocks = (0 until blockCount).map { block ->
+            Task.submit {
+                filterRows(image, block * rowsPerBlock, min(height, (block + 1) * rowsPerBlock), channels)
+            }
+        }.map { it.join() }
+
+        val compressedBlocks = filteredBlocks.mapIndexed { block, data ->
+            Task.submit {
+                deflate(data, filteredBlocks.getOrNull(block - 1), level, block == blockCount - 1)
+            }
+        }
+
+        val adler = Adler32()
+        filteredBlocks.forEach { adler.update(it) }
+
+        val idat = ByteArrayOutputStream()
+        idat.write(0x78)
+        idat.write(zlibFlags(level))
+        compressedBlocks.forEach { idat.write(it.join()) }
+        val checksum = adler.value.toInt()
+        idat.write(checksum ushr 24)
+        idat.write(checksum ushr 16)
+        idat.write(checksum ushr 8)
+        idat.write(checksum)
+
+        val out = ByteArrayOutputStream(idat.size() + 64)
+        val data = DataOutputStream(out)
+        data.write(SIGNATURE)
+        writeChunk(data, "IHDR", ByteArrayOutputStream().also {
+            DataOutputStream(it).apply {
+                writeInt(width)
+                writeInt(height)
+                writeByte(8) // bit depth
+                writeByte(if (hasAlpha) COLOR_TYPE_RGBA else COLOR_TYPE_RGB)
+                writeByte(0) // compression method
+                writeByte(0) // filter method
+                writeByte(0) // interlace method
+            }
+        }.toByteArray())
+        writeChunk(data, "IDAT", idat.toByteArray())
+        writeChunk(data, "IEND", ByteArray(0))
+        return out.toByteArray()
+    }
+
+    /**
+     * Filters the given rows, picking the filter with the lowest sum of absolute differences for each row, which is
+     * the heuristic recommended by the PNG specification.
+     */
+    private fun filterRows(image: BufferedImage, startRow: Int, endRow: Int, channels: Int): ByteArray {
+        val width = image.width
+        val stride = width * channels
+        val out = ByteArray((endRow - startRow) * (stride + 1))
+
+        val argb = IntArray(width)
+        var previous = ByteArray(stride)
+        var current = ByteArray(stride)
+        if (startRow > 0) {
+            readRow(image, startRow - 1, argb, previous, channels)
+        }
+        val candidate = ByteArray(stride)
+        val best = ByteArray(stride)
+
+        for (y in startRow until endRow) {
+            readRow(image, y, argb, current, channels)
+
+            var bestFilter = 0
+            var bestScore = Long.MAX_VALUE
+            for (filter in 0..4) {
+                var score = 0L
+                for (i in 0 until stride) {
+                    val left = if (i >= channels) current[i - channels].toInt() and 0xff else 0
+                    val up = previous[i].toInt() and 0xff
+                    val upLeft = if (i >= channels) previous[i - channels].toInt() and 0xff else 0
+                    val predicted = when (filter) {
+                        0 -> 0
+                        1 -> left
+                        2 -> up
+                        3 -> (left + up) shr 1
+                        else -> paeth(left, up, upLeft)
+                    }
+                    val value = (current[i] - predicted).toByte()
+                    candidate[i] = value
+                    score += abs(value.toInt())
+                }
+                if (score < bestScore) {
+                    bestScore = score
+                    bestFilter = filter
+                    candidate.copyInto(best)
+                }
+            }
+
+            val offset = (y - startRow) * (stride + 1)
+            out[offset] = bestFilter.toByte()
+            best.copyInto(out, offset + 1)
+
+            val tmp = previous
+            previous = current
+            current = tmp
+        }
+        return out
+    }
+
+    private fun readRow(image: BufferedImage, y: Int, argb: IntArray, out: ByteArray, channels: Int) {
+        image.getRGB(0, y, image.width, 1, argb, 0, image.width)
+        var i = 0
+        for (pixel in argb) {
+            out[i++] = (pixel ushr 16).toByte()
+            out[i++] = (pixel ushr 8).toByte()
+            out[i++] = pixel.toByte()
+            if (channels == 4) {
+                out[i++] = (pixel ushr 24).toByte()
+            }
+        }
+    }
+
+    private fun deflate(data: ByteArray, previous: ByteArray?, level: Int, last: Boolean): ByteArray {
+        val deflater = Deflater(level, true)
+        try {
+            if (previous != null) {
+                val length = min(DICTIONARY_SIZE, previous.size)
+                deflater.setDictionary(previous, previous.size - length, length)
+            }
+            deflater.setInput(data)
+            if (last) {
+                deflater.finish()
+            }
+
+            val out = ByteArrayOutputStream(data.size / 2 + 64)
+            val buffer = ByteArray(64 * 1024)
+            while (true) {
+                if (last) {
+                    if (deflater.finished()) break
+                    out.write(buffer, 0, deflater.deflate(buffer))
+                } else {
+                    val count = deflater.deflate(buffer, 0, buffer.size, Deflater.SYNC_FLUSH)
+                    out.write(buffer, 0, count)
+                    // A sync flush which did not fill the buffer has flushed everything
+                    if (count < buffer.size) break
+                }
+            }
+            return out.toByteArray()
+        } finally {
+            deflater.end()
+        }
+    }
+
+    private fun zlibFlags(level: Int): Int {
+        val compressionLevel = when {
+            level <= 1 -> 0
+            level <= 5 -> 1
+            level == 6 -> 2
+            else -> 3
+        }
+        val flags = compressionLevel shl 6
+        return flags + (31 - (0x78 * 256 + flags) % 31) % 31
+    }
+
+    private fun writeChunk(out: DataOutputStream, type: String, data: ByteArray) {
+        val typeBytes = type.toByteArray(Charsets.US_ASCII)
+        val crc = CRC32()
+        crc.update(typeBytes)
+        crc.update(data)
+        out.writeInt(data.size)
+        out.write(typeBytes)
+        out.write(data)
+        out.writeInt(crc.value.toInt())
+    }
+
+    private fun paeth(a: Int, b: Int, c: Int): Int {
+        val p = a + b - c
+        val pa = abs(p - a)
+        val pb = abs(p - b)
+        val pc = abs(p - c)
+        return if (pa <= pb && pa <= pc) a else if (pb <= pc) b else c
+    }
+
+    private fun toBufferedImage(image: RenderedImage): BufferedImage {
+        val type = if (image.colorModel.hasAlpha()) BufferedImage.TYPE_INT_ARGB else BufferedImage.TYPE_INT_RGB
+        val result = BufferedImage(image.width, image.height, type)
+        val graphics = result.createGraphics()
+        try {
+            graphics.drawRenderedImage(image, AffineTransform())
+        } finally {
+            graphics.dispose()
+        }
+        return result
+    }
+
+    /**
+     * A block of work submitted to [Multithreading.POOL].
+     *
+     * We are usually called from that same pool, so if it is busy, [join] runs the task on the calling thread instead of
+     * waiting for a pool thread which may never become available.
+     */
+    private class Task<T>(private val block: () -> T) : Runnable {
+        private val claimed = AtomicBoolean()
+        private val result = CompletableFuture<T>()
+
+        override fun run() {
+            if (!claimed.compareAndSet(false, true)) return
+            try {
+                result.complete(block())
+            } catch (e: Throwable) {
+                result.completeExceptionally(e)
+            }
+        }
+
+        fun join(): T {
+            run()
+            return result.join()
+        }
+
+        companion object {
+            fun <T> submit(block: () -> T): Task<T> = Task(block).also { Multithreading.POOL.execute(it) }
+        }
+    }
+}
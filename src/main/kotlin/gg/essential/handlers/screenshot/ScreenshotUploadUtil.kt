@@ -11,53 +11,117 @@
  */
 package gg.essential.handlers.screenshot
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder
 import java.io.IOException
 import java.io.OutputStream
-import java.io.PrintWriter
 import java.net.HttpURLConnection
 import java.net.MalformedURLException
 import java.net.URL
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 
 object ScreenshotUploadUtil {
 
     private const val CRLF = "\r\n"
+    private const val BUFFER_SIZE = 64 * 1024
+    private const val MAX_ATTEMPTS = 3
+    private const val RETRY_DELAY_MS = 1000L
 
+    /** How many screenshots are uploaded at the same time, any further uploads wait for one of those to finish. */
+    private val PARALLELISM = System.getProperty("essential.screenshots.upload_parallelism")?.toIntOrNull()?.coerceAtLeast(1) ?: 2
+
+    @JvmField
+    val executor: ExecutorService = ThreadPoolExecutor(
+        PARALLELISM, PARALLELISM,
+        30L, TimeUnit.SECONDS,
+        LinkedBlockingQueue(),
+        ThreadFactoryBuilder().setNameFormat("Essential Screenshot Upload #%d").setDaemon(true).build(),
+    ).apply { allowCoreThreadTimeOut(true) }
+
+    fun interface ProgressListener {
+        fun onProgress(bytesSent: Long, bytesTotal: Long)
+    }
+
+    /**
+     * Uploads the given file as a multipart form to the given url.
+     *
+     * The file is streamed straight from disk, so no more than [BUFFER_SIZE] bytes of it are in memory at any time.
+     * Failed attempts (connection errors, server errors or rate limits) are retried up to [MAX_ATTEMPTS] times, each
+     * starting from the beginning of the file again.
+     */
+    @JvmOverloads
     @Throws(MalformedURLException::class, IOException::class)
-    fun httpUpload(url: String, fileData: ByteArray): Boolean {
-        val connection = URL(url).openConnection() as HttpURLConnection
-        val boundary = "---------------" + System.currentTimeMillis().toString(16)
-        connection.doOutput = true
-        connection.doInput = true
-        connection.useCaches = true
-        connection.requestMethod = "POST"
-        connection.addRequestProperty("User-Agent", "Essential")
-        connection.setRequestProperty("Connection", "Keep-Alive")
-        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=$boundary")
-        val directOutput = connection.outputStream
-        val body = PrintWriter(directOutput.writer(), true)
-        body.append(CRLF)
-        addFileData(fileData, body, directOutput, boundary)
-        addCloseDelimiter(body, boundary)
-        return (connection.responseCode / 100) == 2
+    fun httpUpload(url: String, file: Path, progressListener: ProgressListener? = null): Boolean {
+        var attempt = 1
+        while (true) {
+            val responseCode = try {
+                tryUpload(url, file, progressListener)
+            } catch (e: IOException) {
+                if (attempt >= MAX_ATTEMPTS || e is MalformedURLException) throw e
+                null
+            }
+            if (responseCode != null) {
+                if (responseCode / 100 == 2) return true
+                val retryable = responseCode / 100 == 5 || responseCode == 429
+                if (!retryable || attempt >= MAX_ATTEMPTS) return false
+            }
+            Thread.sleep(RETRY_DELAY_MS * attempt)
+            attempt++
+        }
     }
 
+    private fun tryUpload(url: String, file: Path, progressListener: ProgressListener?): Int {
+        val boundary = "---------------" + System.currentTimeMillis().toString(16)
+        val head = (CRLF +
+            "--$boundary$CRLF" +
+            """Content-Disposition: form-data; name="file"; filename="file"""" + CRLF +
+            "Content-Type: image/png$CRLF" +
+            "Content-Transfer-Encoding: binary$CRLF" +
+            CRLF).toByteArray()
+        val tail = "$CRLF--$boundary--$CRLF".toByteArray()
+        val fileSize = Files.size(file)
+
+        val connection = URL(url).openConnection() as HttpURLConnection
+        try {
+            connection.doOutput = true
+            connection.doInput = true
+            connection.useCaches = false
+            connection.requestMethod = "POST"
+            connection.addRequestProperty("User-Agent", "Essential")
+            connection.setRequestProperty("Connection", "Keep-Alive")
+            connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=$boundary")
+            // Without a known length, HttpURLConnection buffers the entire body in memory before sending it
+            connection.setFixedLengthStreamingMode(head.size + fileSize + tail.size)
 
-    @Throws(IOException::class)
-    private fun addFileData(byteStream: ByteArray, body: PrintWriter, directOutput: OutputStream, boundary: String) {
-        body.append("--").append(boundary).append(CRLF)
-        body.append("""Content-Disposition: form-data; name="file"; filename="file"""").append(CRLF)
-        body.append("Content-Type: image/png").append(CRLF)
-        body.append("Content-Transfer-Encoding: binary").append(CRLF)
-        body.append(CRLF)
-        body.flush()
-        directOutput.write(byteStream)
-        directOutput.flush()
-        body.append(CRLF)
-        body.flush()
+            connection.outputStream.use { output ->
+                output.write(head)
+                copyWithProgress(file, output, fileSize, progressListener)
+                output.write(tail)
+            }
+            return connection.responseCode
+        } finally {
+            connection.disconnect()
+        }
     }
 
-    private fun addCloseDelimiter(body: PrintWriter, boundary: String) {
-        body.append("--").append(boundary).append("--").append(CRLF)
-        body.flush()
+    private fun copyWithProgress(file: Path, output: OutputStream, fileSize: Long, progressListener: ProgressListener?) {
+        val buffer = ByteArray(BUFFER_SIZE)
+        var sent = 0L
+        Files.newInputStream(file).use { input ->
+            while (true) {
+                val read = input.read(buffer)
+                if (read == -1) break
+                output.write(buffer, 0, read)
+                sent += read
+                progressListener?.onProgress(sent, fileSize)
+            }
+        }
+        if (sent != fileSize) {
+            throw IOException("$file changed while it was being uploaded")
+        }
     }
-}
\ No newline at end of file
+}
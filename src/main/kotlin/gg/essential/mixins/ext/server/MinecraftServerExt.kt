@@ -11,12 +11,12 @@
  */
 package gg.essential.mixins.ext.server
 
-import kotlinx.coroutines.CoroutineDispatcher
+import gg.essential.util.SingleThreadDispatcher
 import kotlinx.coroutines.CoroutineScope
 import net.minecraft.server.MinecraftServer
 
 interface MinecraftServerExt {
-    val `essential$dispatcher`: CoroutineDispatcher
+    val `essential$dispatcher`: SingleThreadDispatcher
     val `essential$coroutineScope`: CoroutineScope
 }
 
@@ -92,6 +92,15 @@ class McIntegratedServerManager(val server: IntegratedServer) : IntegratedServer
     private var whitelistUpdateJob: Job? = null
     private var opsUpdateJob: Job? = null
 
+    /**
+     * Profiles which are currently on the server's whitelist/op list, as far as we know. Populated from the actual lists
+     * and kept up to date as we apply changes, so later updates only need to apply the difference. Checked against the
+     * actual lists before each update, see [syncApplied].
+     * Only accessed from the server thread.
+     */
+    private var appliedWhitelist: MutableMap<UUID, GameProfile>? = null
+    private var appliedOps: MutableMap<UUID, GameProfile>? = null
+
     //#if MC>=11900
     //$$ // For Mixin_IntegratedServerResourcePack only
     //$$ var appliedServerResourcePack: Optional<ServerResourcePack>? = null
@@ -264,23 +273,21 @@ class McIntegratedServerManager(val server: IntegratedServer) : IntegratedServer
 
     private suspend fun applyWhitelist(desiredWhitelist: Set<UUID>) {
         val whitelist = server.playerList.whitelistedPlayers
+        val applied = syncApplied(appliedWhitelist, whitelist.keys).also { appliedWhitelist = it }
 
         // Add new players to the whitelist
-        for (uuid in desiredWhitelist) {
-            val name = UuidNameLookup.getName(uuid).asDeferred().await()
-            val profile = GameProfile(uuid, name)
+        applyInBatches(resolveProfiles(desiredWhitelist - applied.keys)) { profile ->
             @Suppress("SENSELESS_COMPARISON") // Forge applies an inappropriate NonNullByDefault
             if (whitelist.getEntry(profile) == null) {
                 whitelist.addEntry(UserListWhitelistEntry(profile))
             }
+            applied[profile.id] = profile
         }
 
         // Remove undesired players from the whitelist
-        for (userName in whitelist.keys) {
-            val profile = server.findProfileForName(userName)
-            if (profile != null && profile.id !in desiredWhitelist) {
-                whitelist.removeEntry(profile)
-            }
+        applyInBatches(applied.values.filter { it.id !in desiredWhitelist }) { profile ->
+            whitelist.removeEntry(profile)
+            applied.remove(profile.id)
         }
 
         // Kick anyone who is not on the whitelist
@@ -300,24 +307,58 @@ class McIntegratedServerManager(val server: IntegratedServer) : IntegratedServer
     private suspend fun applyOps(desiredOps: Set<UUID>) {
         val playerList = server.playerList
         val opList = playerList.oppedPlayers
-
-        val allProfiles = opList.keys.mapNotNull { server.findProfileForName(it) }
+        val applied = syncApplied(appliedOps, opList.keys).also { appliedOps = it }
 
         // Remove all players that are no longer op
-        for (profile in allProfiles) {
-            if (profile.id !in desiredOps) {
-                playerList.removeOp(profile)
-            }
+        applyInBatches(applied.values.filter { it.id !in desiredOps }) { profile ->
+            playerList.removeOp(profile)
+            applied.remove(profile.id)
         }
 
         // Op all new players
-        for (uuid in desiredOps) {
-            val name = UuidNameLookup.getName(uuid).asDeferred().await()
-            val profile = GameProfile(uuid, name)
+        applyInBatches(resolveProfiles(desiredOps - applied.keys)) { profile ->
             @Suppress("SENSELESS_COMPARISON") // Forge applies an inappropriate NonNullByDefault
             if (opList.getEntry(profile) == null) {
                 playerList.addOp(profile)
             }
+            applied[profile.id] = profile
+        }
+    }
+
+    /**
+     * Returns [applied] if it still matches the names on the actual list, otherwise re-reads the list, so changes made
+     * by other means (e.g. `/deop` or `/whitelist remove` by the host) are undone again by the next update.
+     * Comparing the names is cheap, unlike resolving their profiles.
+     */
+    private fun syncApplied(applied: MutableMap<UUID, GameProfile>?, userNames: Array<String>): MutableMap<UUID, GameProfile> {
+        if (applied != null && applied.size == userNames.size) {
+            val names = userNames.mapTo(HashSet()) { it.lowercase(Locale.ROOT) }
+            if (applied.values.all { it.name.lowercase(Locale.ROOT) in names }) {
+                return applied
+            }
+        }
+        return currentProfiles(userNames)
+    }
+
+    private fun currentProfiles(userNames: Array<String>): MutableMap<UUID, GameProfile> =
+        userNames.mapNotNull { server.findProfileForName(it) }.associateByTo(mutableMapOf()) { it.id }
+
+    private suspend fun resolveProfiles(uuids: Collection<UUID>): List<GameProfile> {
+        // Start all lookups at once (UuidNameLookup caches and batches them), then wait for them
+        val names = uuids.map { it to UuidNameLookup.getName(it) }
+        return names.map { (uuid, name) -> GameProfile(uuid, name.asDeferred().await()) }
+    }
+
+    /**
+     * Applies [action] to all [items], at most [CHANGES_PER_TICK] per server tick, because each change to a user list
+     * saves the whole list to disk, which would otherwise freeze the server for large changes.
+     */
+    private suspend fun <T> applyInBatches(items: Collection<T>, action: (T) -> Unit) {
+        for ((index, item) in items.withIndex()) {
+            if (index > 0 && index % CHANGES_PER_TICK == 0) {
+                server.dispatcher.awaitNextRun()
+            }
+            action(item)
         }
     }
 
@@ -339,6 +380,10 @@ class McIntegratedServerManager(val server: IntegratedServer) : IntegratedServer
             mutableStatusResponseJson.set(statusJson)
         }
     }
+
+    companion object {
+        private const val CHANGES_PER_TICK = 10
+    }
 }
 
 fun Difficulty.toMc(): McDifficulty = McDifficulty.getDifficultyEnum(ordinal)
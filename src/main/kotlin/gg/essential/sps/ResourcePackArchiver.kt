@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.sps
+
+import org.apache.commons.codec.binary.Hex
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.FilterOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.security.DigestOutputStream
+import java.security.MessageDigest
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.exists
+import kotlin.io.path.getLastModifiedTime
+import kotlin.io.path.invariantSeparatorsPathString
+import kotlin.io.path.isRegularFile
+import kotlin.io.path.readBytes
+import kotlin.io.path.relativeTo
+
+/**
+ * Zips resource pack folders so they can be sent to other players, doing as little work as possible on repeated calls.
+ *
+ * Each file is fingerprinted by its path, size and modification time. If none of them changed since the last call, the
+ * previous archive is returned as is. Otherwise a new archive is written, with the compressed data of unchanged entries
+ * copied straight from the previous archive, so only changed files need to be compressed again. Files which are
+ * already compressed (PNG, OGG) are stored rather than deflated, because deflating them again gains next to nothing.
+ *
+ * The archive does not contain any timestamps and its entries are sorted, so the same content always results in the
+ * same bytes (and therefore the same checksum, which is computed while the archive is written).
+ */
+internal class ResourcePackArchiver {
+    private class Entry(
+        val name: String,
+        val size: Long,
+        val lastModified: Long,
+        val method: Int,
+        val crc: Long,
+        val compressedSize: Long,
+        /** Offset of the local file header of this entry in [Archive.file]. */
+        val headerOffset: Long,
+    ) {
+        val nameBytes = name.encodeToByteArray()
+        val dataOffset: Long
+            get() = headerOffset + LOCAL_HEADER_SIZE + nameBytes.size
+    }
+
+    private class Archive(val folder: Path, val file: Path, val checksum: String, val entries: Map<String, Entry>)
+
+    private var previous: Archive? = null
+
+    /**
+     * Returns a zip of the given folder and its SHA-1 checksum.
+     * The returned file is owned by this archiver, and will be deleted once it is superseded or [clear] is called.
+     */
+    fun archive(folder: Path): Pair<Path, String> {
+        val files = Files.walk(folder).use { stream ->
+            stream.iterator().asSequence()
+                .filter { it.isRegularFile() }
+                .map { it.relativeTo(folder).invariantSeparatorsPathString to it }
+                .sortedBy { it.first }
+                .toList()
+        }
+
+        val last = this.previous
+        val previous = last?.takeIf { it.folder == folder && it.file.exists() }
+        if (previous != null && previous.entries.size == files.size && files.all { (name, path) ->
+                val entry = previous.entries[name]
+                entry != null && entry.size == Files.size(path) && entry.lastModified == path.getLastModifiedTime().toMillis()
+            }) {
+            return previous.file to previous.checksum
+        }
+
+        val file = Files.createTempFile("resource-pack", ".zip")
+        val entries = LinkedHashMap<String, Entry>()
+        val sha1 = MessageDigest.getInstance("SHA-1")
+        try {
+            (previous?.file?.let { FileChannel.open(it) }).use { previousChannel ->
+                CountingOutputStream(DigestOutputStream(BufferedOutputStream(Files.newOutputStream(file)), sha1)).use { out ->
+                    for ((name, path) in files) {
+                        val size = Files.size(path)
+                        val lastModified = path.getLastModifiedTime().toMillis()
+                        val headerOffset = out.count
+
+                        val reusable = previous?.entries?.get(name)
+                            ?.takeIf { it.size == size && it.lastModified == lastModified }
+                        val entry = if (reusable != null && previousChannel != null) {
+                            val entry = Entry(name, size, lastModified, reusable.method, reusable.crc, reusable.compressedSize, headerOffset)
+                            writeLocalHeader(out, entry)
+                            copyRange(previousChannel, reusable.dataOffset, reusable.compressedSize, out)
+                            entry
+                        } else {
+                            val bytes = path.readBytes()
+                            val crc = CRC32().apply { update(bytes) }.value
+                            val stored = isCompressed(name)
+                            val data = if (stored) bytes else deflate(bytes)
+                            val method = if (stored) METHOD_STORED else METHOD_DEFLATED
+                            val entry = Entry(name, bytes.size.toLong(), lastModified, method, crc, data.size.toLong(), headerOffset)
+                            writeLocalHeader(out, entry)
+                            out.write(data)
+                            entry
+                        }
+                        entries[name] = entry
+                    }
+                    writeCentralDirectory(out, entries.values)
+                }
+            }
+        } catch (e: Exception) {
+            file.deleteIfExists()
+            throw e
+        }
+
+        // Delete the superseded archive even if it was for a different folder, otherwise it would leak
+        last?.file?.deleteIfExists()
+        val archive = Archive(folder, file, Hex.encodeHexString(sha1.digest()), entries)
+        this.previous = archive
+        return archive.file to archive.checksum
+    }
+
+    /** Deletes the most recent archive and forgets about it. */
+    fun clear() {
+        previous?.file?.deleteIfExists()
+        previous = null
+    }
+
+    private class CountingOutputStream(out: OutputStream) : FilterOutputStream(out) {
+        var count = 0L
+
+        override fun write(b: Int) {
+            out.write(b)
+            count++
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            out.write(b, off, len)
+            count += len
+        }
+    }
+
+    companion object {
+        private const val LOCAL_HEADER_SIZE = 30
+        private const val METHOD_STORED = 0
+        private const val METHOD_DEFLATED = 8
+        private const val VERSION = 20
+        private const val FLAG_UTF8 = 0x0800
+        /** 1980-01-01 00:00, the earliest date that can be represented, so archives don't depend on when they were made. */
+        private const val DOS_DATE = (1 shl 5) or 1
+        private const val DOS_TIME = 0
+
+        private val COMPRESSED_EXTENSIONS = setOf("png", "ogg")
+
+        private fun isCompressed(name: String): Boolean =
+            name.substringAfterLast('.', "").lowercase() in COMPRESSED_EXTENSIONS
+
+        private fun deflate(bytes: ByteArray): ByteArray {
+            val deflater = Deflater(Deflater.DEFAULT_COMPRESSION, true)
+            try {
+                deflater.setInput(bytes)
+                deflater.finish()
+                val out = ByteArrayOutputStream(bytes.size / 2 + 64)
+                val buffer = ByteArray(64 * 1024)
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer))
+                }
+                return out.toByteArray()
+            } finally {
+                deflater.end()
+            }
+        }
+
+        private fun copyRange(channel: FileChannel, offset: Long, length: Long, out: OutputStream) {
+            val buffer = ByteBuffer.allocate(64 * 1024)
+            var position = offset
+            val end = offset + length
+            while (position < end) {
+                buffer.clear()
+                buffer.limit(minOf(buffer.capacity().toLong(), end - position).toInt())
+                val read = channel.read(buffer, position)
+                if (read < 0) throw IOException("Previous archive ended unexpectedly")
+                out.write(buffer.array(), 0, read)
+                position += read
+            }
+        }
+
+        private fun writeLocalHeader(out: OutputStream, entry: Entry) {
+            checkZip32(entry.compressedSize)
+            checkZip32(entry.size)
+            writeInt(out, 0x04034b50)
+            writeShort(out, VERSION)
+            writeShort(out, FLAG_UTF8)
+            writeShort(out, entry.method)
+            writeShort(out, DOS_TIME)
+            writeShort(out, DOS_DATE)
+            writeInt(out, entry.crc.toInt())
+            writeInt(out, entry.compressedSize.toInt())
+            writeInt(out, entry.size.toInt())
+            writeShort(out, entry.nameBytes.size)
+            writeShort(out, 0) // extra field length
+            out.write(entry.nameBytes)
+        }
+
+        private fun writeCentralDirectory(out: CountingOutputStream, entries: Collection<Entry>) {
+            if (entries.size > 0xffff) throw IOException("Too many files in resource pack (${entries.size})")
+            val start = out.count
+            for (entry in entries) {
+                checkZip32(entry.headerOffset)
+                writeInt(out, 0x02014b50)
+                writeShort(out, VERSION) // version made by
+                writeShort(out, VERSION) // version needed to extract
+                writeShort(out, FLAG_UTF8)
+                writeShort(out, entry.method)
+                writeShort(out, DOS_TIME)
+                writeShort(out, DOS_DATE)
+                writeInt(out, entry.crc.toInt())
+                writeInt(out, entry.compressedSize.toInt())
+                writeInt(out, entry.size.toInt())
+                writeShort(out, entry.nameBytes.size)
+                writeShort(out, 0) // extra field length
+                writeShort(out, 0) // comment length
+                writeShort(out, 0) // disk number
+                writeShort(out, 0) // internal attributes
+                writeInt(out, 0) // external attributes
+                writeInt(out, entry.headerOffset.toInt())
+                out.write(entry.nameBytes)
+            }
+            val size = out.count - start
+            checkZip32(start)
+            writeInt(out, 0x06054b50)
+            writeShort(out, 0) // disk number
+            writeShort(out, 0) // disk with central directory
+            writeShort(out, entries.size)
+            writeShort(out, entries.size)
+            writeInt(out, size.toInt())
+            writeInt(out, start.toInt())
+            writeShort(out, 0) // comment length
+        }
+
+        private fun checkZip32(value: Long) {
+            if (value >= 0xffffffffL) throw IOException("Resource pack too large to zip")
+        }
+
+        private fun writeShort(out: OutputStream, value: Int) {
+            out.write(value)
+            out.write(value ushr 8)
+        }
+
+        private fun writeInt(out: OutputStream, value: Int) {
+            out.write(value)
+            out.write(value ushr 8)
+            out.write(value ushr 16)
+            out.write(value ushr 24)
+        }
+    }
+}
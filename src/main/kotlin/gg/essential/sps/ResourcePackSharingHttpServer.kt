@@ -11,13 +11,13 @@
  */
 package gg.essential.sps
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder
 import com.sun.net.httpserver.HttpExchange
 import com.sun.net.httpserver.HttpServer
 import gg.essential.Essential
 import gg.essential.mixins.ext.client.resource.ResourcePackWithPath
 import gg.essential.sps.quic.jvm.LOCALHOST
 import gg.essential.universal.UMinecraft
-import gg.essential.util.Multithreading
 import gg.essential.util.ResourceManagerUtil
 import gg.essential.util.executor
 import net.minecraft.client.Minecraft
@@ -25,19 +25,19 @@ import net.minecraft.client.resources.IResourcePack
 import org.apache.commons.codec.digest.DigestUtils
 import org.apache.http.HttpStatus
 import java.net.InetSocketAddress
-import java.nio.file.Files
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
 import java.nio.file.Path
-import java.util.zip.ZipEntry
-import java.util.zip.ZipOutputStream
-import kotlin.io.path.deleteIfExists
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 import kotlin.io.path.exists
 import kotlin.io.path.fileSize
+import kotlin.io.path.getLastModifiedTime
 import kotlin.io.path.inputStream
 import kotlin.io.path.isDirectory
-import kotlin.io.path.listDirectoryEntries
-import kotlin.io.path.outputStream
-import kotlin.io.path.readBytes
-import kotlin.io.path.relativeTo
 
 object ResourcePackSharingHttpServer {
     private val spsManager = Essential.getInstance().connectionManager.spsManager
@@ -46,9 +46,22 @@ object ResourcePackSharingHttpServer {
 
     private var packInfo: PackInfo? = null
 
+    private val archiver = ResourcePackArchiver()
+
+    /** Checksum of the most recent non-folder pack, keyed by path, size and modification time. */
+    private var fileChecksum: Pair<List<Any>, String>? = null
+
     val port: Int?
         get() = server?.address?.port
 
+    /** Transfers are mostly waiting on the (potentially slow) connection to the guest, so they get their own threads. */
+    private val executor: ExecutorService = ThreadPoolExecutor(
+        2, 2,
+        30L, TimeUnit.SECONDS,
+        LinkedBlockingQueue(),
+        ThreadFactoryBuilder().setNameFormat("Essential Resource Pack Server #%d").setDaemon(true).build(),
+    ).apply { allowCoreThreadTimeOut(true) }
+
     init {
         UMinecraft.getMinecraft().executor.execute {
             updateResourcePack()
@@ -76,7 +89,7 @@ object ResourcePackSharingHttpServer {
 
                 else -> {
                     try {
-                        sendFile(packInfo.file, it)
+                        sendFile(packInfo.file, packInfo.checksum, it)
                     } catch (e: Exception) {
                         e.printStackTrace() // Otherwise it will be eaten by the webserver
                         it.responseBody.close()
@@ -85,7 +98,7 @@ object ResourcePackSharingHttpServer {
             }
 
         }
-        server.executor = Multithreading.pool
+        server.executor = executor
         server.start()
         this.server = server
     }
@@ -95,12 +108,93 @@ object ResourcePackSharingHttpServer {
         server = null
     }
 
-    private fun sendFile(file: Path, exchange: HttpExchange) {
-        exchange.sendResponseHeaders(HttpStatus.SC_OK, file.fileSize())
-        file.inputStream().use {
-            it.copyTo(exchange.responseBody)
+    /**
+     * Sends the given file, with support for `HEAD` requests, conditional requests via its checksum as ETag, and single
+     * byte ranges, so a client whose download got interrupted can resume where it left off.
+     */
+    private fun sendFile(file: Path, checksum: String, exchange: HttpExchange) {
+        val etag = "\"$checksum\""
+        val headers = exchange.responseHeaders
+        headers.set("ETag", etag)
+        headers.set("Accept-Ranges", "bytes")
+        headers.set("Content-Type", "application/zip")
+
+        val requestHeaders = exchange.requestHeaders
+        if (requestHeaders.getFirst("If-None-Match")?.split(',')?.any { it.trim() == etag || it.trim() == "*" } == true) {
+            exchange.sendResponseHeaders(HttpStatus.SC_NOT_MODIFIED, -1)
+            exchange.close()
+            return
+        }
+
+        FileChannel.open(file, StandardOpenOption.READ).use { channel ->
+            val fileSize = channel.size()
+
+            // Ranges only apply if the client still has the same version of the file (or did not say which it has)
+            val ifRange = requestHeaders.getFirst("If-Range")
+            val requestedRange = requestHeaders.getFirst("Range")
+                ?.takeIf { ifRange == null || ifRange == etag }
+                ?.let { parseRange(it, fileSize) }
+            if (requestedRange != null && requestedRange.isEmpty()) {
+                headers.set("Content-Range", "bytes */$fileSize")
+                exchange.sendResponseHeaders(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE, -1)
+                exchange.close()
+                return
+            }
+            val range = requestedRange ?: (0L until fileSize)
+            val length = range.last - range.first + 1
+
+            val status = if (requestedRange != null) {
+                headers.set("Content-Range", "bytes ${range.first}-${range.last}/$fileSize")
+                HttpStatus.SC_PARTIAL_CONTENT
+            } else {
+                HttpStatus.SC_OK
+            }
+
+            if (exchange.requestMethod.equals("HEAD", ignoreCase = true)) {
+                headers.set("Content-Length", length.toString())
+                exchange.sendResponseHeaders(status, -1)
+                exchange.close()
+                return
+            }
+
+            // A length of 0 means chunked encoding to the http server, -1 means no body
+            exchange.sendResponseHeaders(status, if (length == 0L) -1 else length)
+            exchange.responseBody.use { out ->
+                val target = Channels.newChannel(out)
+                var position = range.first
+                val end = range.last + 1
+                while (position < end) {
+                    val transferred = channel.transferTo(position, end - position, target)
+                    if (transferred <= 0) break // file was truncated
+                    position += transferred
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a single `bytes` range as per RFC 9110.
+     * Returns `null` if the header is malformed or uses a different unit, in which case it must be ignored and the full
+     * file served, or an empty range if it is well-formed but cannot be satisfied because it starts past the end of
+     * the file.
+     * Multiple ranges are not supported; we only ever serve the first one, which is all a resuming client needs.
+     */
+    private fun parseRange(header: String, fileSize: Long): LongRange? {
+        if (!header.startsWith("bytes=")) return null
+        val spec = header.removePrefix("bytes=").substringBefore(',').trim()
+        if ('-' !in spec) return null
+        val start = spec.substringBefore('-').trim()
+        val end = spec.substringAfter('-').trim()
+        if (start.isEmpty()) {
+            // Suffix range, i.e. the last N bytes
+            val suffixLength = end.toLongOrNull()?.takeIf { it >= 0 } ?: return null
+            if (suffixLength == 0L || fileSize == 0L) return LongRange.EMPTY
+            return maxOf(0L, fileSize - suffixLength) until fileSize
         }
-        exchange.responseBody.close()
+        val first = start.toLongOrNull()?.takeIf { it >= 0 } ?: return null
+        val last = if (end.isEmpty()) Long.MAX_VALUE else end.toLongOrNull()?.takeIf { it >= first } ?: return null
+        if (first >= fileSize) return LongRange.EMPTY
+        return first..minOf(last, fileSize - 1)
     }
 
     private fun getPrimaryResourcePack(): IResourcePack? {
@@ -128,22 +222,20 @@ object ResourcePackSharingHttpServer {
         // If the user is not actively sharing their resource pack, reset the packInfo
         // and cancel computing it to avoid needlessly zipping
         if (spsManager.localSession == null || !spsManager.isShareResourcePack) {
-            packInfo?.takeIf { it.isTemp }?.file?.deleteIfExists()
+            archiver.clear()
             packInfo = null
             spsManager.updateResourcePack(null)
             return
         }
         recomputePrimaryPack()
+        if (packInfo?.isTemp != true) {
+            // Not sharing a zipped folder (anymore), no need to keep the previous zip around
+            archiver.clear()
+        }
         spsManager.updateResourcePack(packInfo)
     }
 
     private fun recomputePrimaryPack() {
-        // Cleanup previous temp zip file if needed
-        val packInfo = packInfo
-        if (packInfo?.isTemp == true) {
-            packInfo.file.deleteIfExists()
-        }
-
         val resourcePack = getPrimaryResourcePack()
         if (resourcePack == null) {
             this.packInfo = null
@@ -157,12 +249,12 @@ object ResourcePackSharingHttpServer {
                 return
             }
             if (file.isDirectory()) {
-                // Zip the resource pack to send
-                val tempFile = Files.createTempFile("resource-pack", ".zip")
-                Essential.logger.info("Zipping host resource pack to $tempFile")
-
-                zipFolder(file, tempFile)
-                this.packInfo = PackInfo(tempFile, getChecksum(tempFile), true)
+                // Zip the resource pack to send (reusing the previous zip if nothing changed)
+                val (zipFile, checksum) = archiver.archive(file)
+                if (zipFile != this.packInfo?.file) {
+                    Essential.logger.info("Zipped host resource pack to $zipFile")
+                }
+                this.packInfo = PackInfo(zipFile, checksum, true)
             } else if (file.exists()) {
                 this.packInfo = PackInfo(file, getChecksum(file), false)
             } else {
@@ -177,46 +269,12 @@ object ResourcePackSharingHttpServer {
     }
 
     private fun getChecksum(file: Path): String {
-        return DigestUtils.sha1Hex(file.readBytes())
+        val key = listOf(file, file.fileSize(), file.getLastModifiedTime())
+        fileChecksum?.let { (cachedKey, checksum) -> if (cachedKey == key) return checksum }
+        val checksum = file.inputStream().use { DigestUtils.sha1Hex(it) }
+        fileChecksum = key to checksum
+        return checksum
     }
 
     data class PackInfo(val file: Path, val checksum: String, val isTemp: Boolean)
-
-    /** Adapted from https://stackoverflow.com/questions/51833423/how-to-zip-the-content-of-a-directory-in-java */
-    @Throws(java.lang.Exception::class)
-    private fun zipFolder(srcFolder: Path, destZipFile: Path) {
-        destZipFile.outputStream().use { fileWriter ->
-            ZipOutputStream(fileWriter).use { zip ->
-                addFolderToZip(
-                    srcFolder,
-                    srcFolder,
-                    zip
-                )
-            }
-        }
-    }
-
-    @Throws(java.lang.Exception::class)
-    private fun addFileToZip(rootPath: Path, srcFile: Path, zip: ZipOutputStream) {
-        if (srcFile.isDirectory()) {
-            addFolderToZip(rootPath, srcFile, zip)
-        } else {
-            val buf = ByteArray(1024)
-            var len: Int
-            srcFile.inputStream().use { `in` ->
-                val name = srcFile.relativeTo(rootPath).toString()
-                zip.putNextEntry(ZipEntry(name))
-                while (`in`.read(buf).also { len = it } > 0) {
-                    zip.write(buf, 0, len)
-                }
-            }
-        }
-    }
-
-    @Throws(java.lang.Exception::class)
-    private fun addFolderToZip(rootPath: Path, srcFolder: Path, zip: ZipOutputStream) {
-        for (fileName in srcFolder.listDirectoryEntries()) {
-            addFileToZip(rootPath, fileName, zip)
-        }
-    }
-}
\ No newline at end of file
+}
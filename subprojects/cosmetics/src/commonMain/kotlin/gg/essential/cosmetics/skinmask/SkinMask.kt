@@ -25,23 +25,56 @@ import kotlin.math.min
  * Pixels which are black in the mask get removed from the skin, pixels which are white in the mask are unaffected.
  */
 class SkinMask(val parts: Map<EnumPart, Mask>) {
-    fun apply(skin: Bitmap): Bitmap {
-        return skin.mutableCopy().apply { applyTo(this) }
-    }
-
-    fun applyTo(skin: MutableBitmap) {
+    /**
+     * Horizontal runs of pixels (in skin coordinates) which get removed by this mask, stored as consecutive
+     * `x, y, length` triples.
+     * Computed once so that applying the same mask to many skins only has to fill these runs.
+     */
+    private val clearedSpans: IntArray by lazy {
+        val spans = mutableListOf<Int>()
         for ((part, mask) in parts) {
             val box = SKIN_PARTS[part] ?: continue
             for (y in 0 until box.height) {
-                for (x in 0 until box.width) {
-                    if (!mask[x, y]) {
-                        skin[box.x + x, box.y + y] = Color(0u)
+                var x = 0
+                while (x < box.width) {
+                    if (mask[x, y]) {
+                        x++
+                        continue
                     }
+                    val start = x
+                    while (x < box.width && !mask[x, y]) {
+                        x++
+                    }
+                    spans.add(box.x + start)
+                    spans.add(box.y + y)
+                    spans.add(x - start)
                 }
             }
         }
+        spans.toIntArray()
+    }
+
+    private val cachedHashCode: Int by lazy { parts.hashCode() }
+
+    fun apply(skin: Bitmap): Bitmap {
+        return skin.mutableCopy().apply { applyTo(this) }
+    }
+
+    fun applyTo(skin: MutableBitmap) {
+        val spans = clearedSpans
+        for (i in spans.indices step 3) {
+            skin[spans[i], spans[i + 1], spans[i + 2], 1] = Color(0u)
+        }
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is SkinMask) return false
+        return cachedHashCode == other.cachedHashCode && parts == other.parts
     }
 
+    override fun hashCode(): Int = cachedHashCode
+
     fun offset(x: Int, y: Int, z: Int): SkinMask = SkinMask(parts.mapValues { (part, mask) ->
         val cubeMaps = CUBE_MAPS[part] ?: return@mapValues mask
         val result = Mask.ofSize(mask.width, mask.height)
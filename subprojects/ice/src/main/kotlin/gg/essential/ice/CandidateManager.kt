@@ -29,7 +29,9 @@ import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.flow.launchIn
 import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.job
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import org.slf4j.Logger
 import java.net.DatagramSocket
 import java.net.Inet4Address
@@ -37,7 +39,9 @@ import java.net.Inet6Address
 import java.net.InetAddress
 import java.net.InetSocketAddress
 import java.net.NetworkInterface
+import java.net.SocketException
 import kotlin.time.Duration.Companion.INFINITE
+import kotlin.time.Duration.Companion.seconds
 
 /**
  * This class implements ICE candidate gathering (host, server-reflexive, and relay candidates) in a way that it may be
@@ -57,6 +61,14 @@ class CandidateManager(
     var anyShutDown = false
         private set
 
+    /**
+     * Set to `true` once the addresses of the local network interfaces have changed since candidates were gathered, at
+     * which point some of them may no longer be reachable, so this CandidateManager should no longer be used for new
+     * connections either.
+     */
+    var networkChanged = false
+        private set
+
     private var doneCollecting = false
     private val candidates = mutableListOf<ReusableCandidate>()
     private val consumers = mutableListOf<Pair<Job, SendChannel<LocalCandidate>>>()
@@ -69,6 +81,18 @@ class CandidateManager(
     private var nextRelayedPreference = MAX_LOCAL_PREFERENCE
 
     init {
+        scope.launch {
+            val fingerprint = withContext(Dispatchers.IO) { networkFingerprint() } ?: return@launch
+            while (true) {
+                delay(NETWORK_CHECK_INTERVAL)
+                val current = withContext(Dispatchers.IO) { networkFingerprint() } ?: continue
+                if (current != fingerprint) {
+                    logger.info("Network interfaces have changed, candidates will no longer be used for new connections.")
+                    networkChanged = true
+                    break
+                }
+            }
+        }
         scope.launch {
             gatherCandidates()
             logger.debug("End of candidate gathering.")
@@ -81,6 +105,9 @@ class CandidateManager(
     fun getCandidates(parentJob: Job): ReceiveChannel<LocalCandidate> {
         val channel = Channel<LocalCandidate>(Channel.UNLIMITED) { it.close() }
 
+        if (candidates.isNotEmpty()) {
+            logger.debug("Reusing {} previously gathered candidates", candidates.size)
+        }
         for (candidate in candidates) {
             channel.trySend(candidate.use(parentJob))
         }
@@ -104,6 +131,15 @@ class CandidateManager(
     private fun addCandidate(candidate: ReusableCandidate) {
         candidates.add(candidate)
 
+        // Bindings and allocations are refreshed in the background, if that ever fails they shut themselves down, in
+        // which case the candidate must no longer be handed out to new connections
+        val candidateJob = (candidate.relay?.scope ?: candidate.binding?.scope ?: candidate.socket.scope).coroutineContext.job
+        scope.launch {
+            candidateJob.join()
+            candidates.remove(candidate)
+            anyShutDown = true
+        }
+
         consumers
             // Note: Need to allocate all candidates before sending any of them into their channel, otherwise if the
             // first one is immediately closed again, the entire ReusableCandidate might be closed even though there
@@ -128,6 +164,41 @@ class CandidateManager(
             .launchIn(this)
     }
 
+    /**
+     * Identifies the networks we are connected to, based on the addresses which may be used for host candidates (see
+     * [gatherHostCandidates]).
+     * IPv6 addresses are only identified by their /64 prefix, because the OS regularly rotates temporary (privacy)
+     * addresses within the same prefix, which does not make the candidates we gathered any less valid.
+     * Returns `null` if the interfaces could not be queried.
+     */
+    private fun networkFingerprint(): Set<String>? = try {
+        NetworkInterface.getNetworkInterfaces().asSequence()
+            .filter { !it.isLoopback && it.isUp }
+            .flatMap { it.inetAddresses.asSequence() }
+            .filter { hostAddressSkipReason(it) == null }
+            .map { address ->
+                when (address) {
+                    is Inet6Address -> address.address.copyOf(8).joinToString(":", prefix = "v6:") { (it.toInt() and 0xff).toString(16) }
+                    else -> address.hostAddress
+                }
+            }
+            .toSet()
+    } catch (e: SocketException) {
+        logger.warn("Failed to query network interfaces:", e)
+        null
+    }
+
+    /** Returns why the given address may not be used for host candidates, or `null` if it may be used. */
+    private fun hostAddressSkipReason(address: InetAddress): String? = when {
+        address.isLoopbackAddress -> "it is a loopback address"
+        // https://www.rfc-editor.org/rfc/rfc8445#section-5.1.1.1
+        address is Inet6Address && address.isLinkLocalAddress -> "it is a link-local IPv6 address"
+        address is Inet6Address && address.isSiteLocalAddress -> "it is a deprecated site-local IPv6 address"
+        address is Inet6Address && address.isIPv4CompatibleAddress -> "it is a deprecated IPv4-compatible IPv6 address"
+        address is Inet6Address && address.isIPv4MappedAddress -> "it is a IPv4-mapped IPv6 address"
+        else -> null
+    }
+
     private fun gatherHostCandidates(): Flow<ReusableCandidate> = flow {
         var nextNormalPreference = MAX_LOCAL_PREFERENCE
         var nextVPNPreference = MAX_LOCAL_PREFERENCE / 2
@@ -147,25 +218,11 @@ class CandidateManager(
             logger.trace("Network interface {} has addresses: {}", iface, unfilteredAddresses)
 
             val addresses = unfilteredAddresses.filter { address ->
-                when {
-                    address.isLoopbackAddress -> {
-                        logger.trace("Skipping address because it is a loopback address: {}", address)
-                        false
-                    }
-                    address is Inet6Address && address.isSiteLocalAddress -> {
-                        logger.trace("Skipping address because it is a deprecated site-local IPv6 address: {}", address)
-                        false
-                    }
-                    address is Inet6Address && address.isIPv4CompatibleAddress -> {
-                        logger.trace("Skipping address because it is a deprecated IPv4-compatible IPv6 address: {}", address)
-                        false
-                    }
-                    address is Inet6Address && address.isIPv4MappedAddress -> {
-                        logger.trace("Skipping address because it is a IPv4-mapped IPv6 address: {}", address)
-                        false
-                    }
-                    else -> true
+                val skipReason = hostAddressSkipReason(address)
+                if (skipReason != null) {
+                    logger.trace("Skipping address because {}: {}", skipReason, address)
                 }
+                skipReason == null
             }
 
             // Sort addresses as recommended by https://www.rfc-editor.org/rfc/rfc8421 for dual-stack agents
@@ -287,6 +344,8 @@ class CandidateManager(
 
     companion object {
         private const val MAX_LOCAL_PREFERENCE = 65535
+        /** Querying the network interfaces is fairly expensive on Windows, so we don't want to do it too often. */
+        private val NETWORK_CHECK_INTERVAL = 30.seconds
 
         // https://www.rfc-editor.org/rfc/rfc4291#section-2.5.5.2
         private val Inet6Address.isIPv4MappedAddress: Boolean
@@ -32,9 +32,12 @@ import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.job
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.plus
+import kotlinx.coroutines.withTimeoutOrNull
 import org.slf4j.Logger
 import org.slf4j.spi.LoggingEventBuilder
 import java.io.IOException
@@ -86,6 +89,16 @@ class IceAgent(
     val remoteCandidateChannel = Channel<RemoteCandidate>(Channel.UNLIMITED)
     /** Completes once we are ready to send data. Should be used `withTimeout` as it may never complete if ICE fails. */
     val readyForData = CompletableDeferred<Unit>(parent = job)
+    /**
+     * Round trip time of the pair which data is (about to be) sent on, and whether that pair goes via a relay.
+     * Only meant as a hint for tuning whatever transport runs on top of ICE, may be read from any thread.
+     */
+    @Volatile
+    var dataPathRtt: Duration? = null
+        private set
+    @Volatile
+    var dataPathRelayed: Boolean = false
+        private set
     val inboundDataChannel = Channel<Pair<LocalCandidate, ByteArray>>(1000, BufferOverflow.DROP_OLDEST) { pair ->
         logger.warn("IceAgent.inboundDataChannel overflow, dropping packet of {} bytes", pair.second.size)
     }
@@ -115,6 +128,20 @@ class IceAgent(
     private val validList = mutableListOf<CandidatePair>()
     private var selectedPair: CandidatePair? = null
 
+    /**
+     * Incremented whenever something changes about the checklist which may be relevant to nomination or to the choice
+     * of pair to send data on (new pairs, completed checks, new RTT measurements), so we can wait for such changes
+     * instead of polling.
+     */
+    private val checklistVersion = MutableStateFlow(0)
+
+    /**
+     * The pair which data is sent on while [selectedPair] is not yet set, see [getDataPair].
+     * Undefined for controlled client (which follows the controlling one, see [lastReceivedDataPair]).
+     */
+    private var dataPair: CandidatePair? = null
+    private var dataPairVersion = -1
+
     /**
      * Contains the pair on which the controlled client has last received data while [selectedPair] is not yet set.
      * Undefined for controlling client and after [selectedPair] has been set.
@@ -255,6 +282,7 @@ class IceAgent(
 
         val index = checklist.binarySearch(newPair, compareBy { -it.priority })
         checklist.add(if (index >= 0) index else -index - 1, newPair)
+        checklistVersion.value++
 
         if (checklist.size > MAX_CHECKLIST_SIZE) {
             // Remove failed pairs first
@@ -295,7 +323,7 @@ class IceAgent(
 
             // Prefer triggered checks because they have a huge chance of success
             val pair = pollTriggeredCheck()
-                ?: checklist.find { it.state == CandidatePair.State.Waiting }
+                ?: pollWaitingCheck()
 
             if (pair == null) {
                 performRTTChecks()
@@ -310,6 +338,29 @@ class IceAgent(
         }
     }
 
+    /**
+     * Picks the next pair to check from the checklist.
+     *
+     * This is usually simply the highest priority [CandidatePair.State.Waiting] pair, except where [PairHistory]
+     * clearly indicates that a lower priority one is more likely to succeed (e.g. because direct pairs from the local
+     * interface have never worked in previous sessions), in which case we'll try that one first.
+     */
+    private fun pollWaitingCheck(): CandidatePair? {
+        var best: CandidatePair? = null
+        var bestLikelihood = -1
+        // Checklist is sorted by priority, so we only need to look for higher likelihood
+        for (pair in checklist) {
+            if (pair.state != CandidatePair.State.Waiting) continue
+            val likelihood = PairHistory.likelihood(pair.local, pair.remote)
+            if (likelihood > bestLikelihood) {
+                best = pair
+                bestLikelihood = likelihood
+                if (likelihood == PairHistory.MAX_LIKELIHOOD) break
+            }
+        }
+        return best
+    }
+
     private suspend fun performRTTChecks() {
         val pair = validList.minByOrNull { it.extraRttChecks } ?: return
 
@@ -352,10 +403,16 @@ class IceAgent(
         val (request, response) = sendIceBindingRequest(tId, pair)
         if (response == null) {
             logger.debug("Connectivity check failed, no response: {}", pair)
+            PairHistory.recordFailure(pair.local, pair.remote)
             pair.state = CandidatePair.State.Failed
             return
         }
 
+        val transmitCounter = response.message.attribute<StunAttribute.TransactionTransmitCounter>()
+        if (transmitCounter != null) {
+            stunManager.bindingPacer.onResponse(transmitCounter.request - 1)
+        }
+
         // Check for non-symmetry (7.2.5.2.1.)
         if (pair.remote.address != response.source) {
             logger.debug("Failed, request destination ({}) does not match response source ({}).",
@@ -381,6 +438,7 @@ class IceAgent(
         // Success!
         val rtt = request.getRoundTripTime(response)
         logger.debug("Connectivity check succeeded: {} ({}ms)", pair, rtt.inWholeMilliseconds)
+        PairHistory.recordSuccess(pair.local, pair.remote)
 
         remoteIsIce4J.complete(response.message.attribute<StunAttribute.Software>()?.value == "ice4j.org")
 
@@ -413,6 +471,7 @@ class IceAgent(
 
         // Once we have a valid pair, we can send data via it (provided the remote supports this)
         if (!remoteIsIce4J.await()) {
+            updateDataPath(selectedPair ?: getDataPair())
             readyForData.complete(Unit)
         }
 
@@ -451,39 +510,44 @@ class IceAgent(
         if (remoteIsIce4J.await()) {
             // This roughly mirrors NominateBestRTT.java
             // 1. Wait until we have some valid candidate
-            while (validList.isEmpty()) {
-                delay(0.1.seconds)
-            }
+            awaitChecklist { validList.isNotEmpty() }
             // 2. If we only have relay pairs, wait for any direct ones
-            val relayWaitTimeout = TimeSource.Monotonic.markNow() + 10.seconds
-            while (validList.all { it.local.isRelay || it.remote.isRelay }) {
-                delay(0.1.seconds)
-                if (relayWaitTimeout.hasPassedNow()) {
-                    break
-                }
+            withTimeoutOrNull(10.seconds) {
+                awaitChecklist { validList.any { it.isDirect } }
             }
             // 3. Wait some more in the hope that more direct ones are discovered
-            val directWaitTimeout = TimeSource.Monotonic.markNow() + 3.seconds
-            while (checklist.any { it.state <= CandidatePair.State.InProgress }) {
-                delay(0.1.seconds)
-                if (directWaitTimeout.hasPassedNow()) {
-                    break
-                }
+            withTimeoutOrNull(3.seconds) {
+                awaitChecklist { checklist.none { it.state <= CandidatePair.State.InProgress } }
             }
             // We have waited enough, time to nominate someone
         } else {
-            // We are in no hurry, only reason we need to pick eventually is so we can free up allocated relays,
-            // so we can just wait until all checks are done (or timed out).
+            // We are in no hurry, data is already flowing over the best valid pair (see [getDataPair]), and will switch
+            // over to better pairs as they are found. The only reason we need to pick eventually is so we can free up
+            // allocated relays, so we can just wait until all checks are done (or timed out).
             // We just don't want to pick too quickly, because more peer reflexive candidates can be discovered
             // in the process. Similar to what's discussed in https://www.rfc-editor.org/rfc/rfc8863 but instead
             // of failure, we're concerned with prematurely picking a sub-optimal route.
-            val minWaitTimeout = TimeSource.Monotonic.markNow() + 30.seconds
-            while (checklist.isEmpty() || checklist.any { it.state <= CandidatePair.State.InProgress } || !minWaitTimeout.hasPassedNow()) {
-                delay(0.1.seconds)
+            // If we already have a direct pair, any improvement would be marginal, so we wait a little less.
+            val start = TimeSource.Monotonic.markNow()
+            while (true) {
+                awaitChecklist { checklist.isNotEmpty() && checklist.none { it.state <= CandidatePair.State.InProgress } }
+
+                val minWait = if (getDataPair()?.isDirect == true) DIRECT_MIN_NOMINATION_WAIT else MIN_NOMINATION_WAIT
+                val remaining = minWait - start.elapsedNow()
+                if (!remaining.isPositive()) {
+                    break
+                }
+
+                // Wait out the remaining time, but re-evaluate if anything changes in the meantime
+                val version = checklistVersion.value
+                withTimeoutOrNull(remaining) {
+                    checklistVersion.first { it != version }
+                }
             }
         }
 
-        val nominatePair = getBestValidPair() ?: throw IOException("No valid pairs could be found.")
+        // Prefer the pair we are already sending data on, so the data path does not change unnecessarily
+        val nominatePair = getDataPair() ?: throw IOException("No valid pairs could be found.")
 
         logger.info("Nominate: {} ({}ms RTT)", nominatePair, nominatePair.rtt?.inWholeMilliseconds)
         logValidList(nominatePair)
@@ -491,6 +555,10 @@ class IceAgent(
         nominate(nominatePair)
     }
 
+    private suspend fun awaitChecklist(condition: () -> Boolean) {
+        checklistVersion.first { condition() }
+    }
+
     private suspend fun nominate(pair: CandidatePair) {
         check(controlling) { "Only the controlling agent may nominate a pair." }
 
@@ -512,6 +580,7 @@ class IceAgent(
         check(selectedPair == null)
 
         selectedPair = pair
+        updateDataPath(pair)
 
         if (remoteIsIce4J.await()) {
             readyForData.complete(Unit)
@@ -531,13 +600,37 @@ class IceAgent(
     }
 
     private fun getBestValidPair(): CandidatePair? {
-        return validList.minByOrNull { pair ->
-            // Prefer lowest latency and non-relay
-            var score = pair.rtt?.inWholeMilliseconds ?: 9999
-            if (pair.local.isRelay) score += RELAY_PENALTY
-            if (pair.remote.isRelay) score += RELAY_PENALTY
-            score
+        return validList.minByOrNull { it.score }
+    }
+
+    /**
+     * Returns the pair which data should be sent on while we have not yet settled on a pair.
+     *
+     * This is the best valid pair, except that we only switch away from the pair we are currently using if the new
+     * one is better by at least [PAIR_SWITCH_THRESHOLD], so jitter in RTT measurements does not make the data path
+     * flip between similar pairs (which NATs along the way may not appreciate).
+     */
+    private fun getDataPair(): CandidatePair? {
+        if (dataPairVersion == checklistVersion.value) {
+            return dataPair
+        }
+        dataPairVersion = checklistVersion.value
+
+        val best = getBestValidPair() ?: return null
+        val current = dataPair
+        if (current == null) {
+            dataPair = best
+        } else if (current !== best && best.score + PAIR_SWITCH_THRESHOLD < current.score) {
+            logger.info("Switching data to better pair: {} ({}ms RTT)", best, best.rtt?.inWholeMilliseconds)
+            dataPair = best
         }
+        return dataPair
+    }
+
+    private fun updateDataPath(pair: CandidatePair?) {
+        if (pair == null) return
+        dataPathRtt = pair.rtt
+        dataPathRelayed = !pair.isDirect
     }
 
     private fun logValidList(nominatedPair: CandidatePair) {
@@ -553,7 +646,7 @@ class IceAgent(
         //       controlling client decided, the data flow may be asymmetric and NATs on the way which then only ever
         //       see data going one way may decide that the other side is no longer interested in the conversation and
         //       therefore drop their port mapping.
-        val pair = selectedPair ?: (if (controlling) null else lastReceivedDataPair) ?: getBestValidPair() ?: return
+        val pair = selectedPair ?: (if (controlling) null else lastReceivedDataPair) ?: getDataPair() ?: return
 
         if (highVolumeLogging) {
             val checksum = sha256.digest(bytes).toBase64String()
@@ -667,10 +760,18 @@ class IceAgent(
         }
     }
 
-    private class CandidatePair(val local: LocalCandidate, val remote: RemoteCandidate, isLocalControlling: Boolean) {
+    private inner class CandidatePair(val local: LocalCandidate, val remote: RemoteCandidate, isLocalControlling: Boolean) {
         var state: State = State.Waiting
+            set(value) {
+                field = value
+                checklistVersion.value++
+            }
         var check: Job? = null
         var rtt: Duration? = null
+            set(value) {
+                field = value
+                checklistVersion.value++
+            }
         var extraRttChecks = 0
         var hadTriggeredCheck = false
 
@@ -690,6 +791,18 @@ class IceAgent(
             min(g, d).toLong().shl(32) + max(g, d).toLong().shl(1) + if (g > d) 1 else 0
         }
 
+        val isDirect: Boolean
+            get() = !local.isRelay && !remote.isRelay
+
+        /** Lower is better. Prefers lowest latency and non-relay. */
+        val score: Long
+            get() {
+                var score = rtt?.inWholeMilliseconds ?: 9999
+                if (local.isRelay) score += RELAY_PENALTY
+                if (remote.isRelay) score += RELAY_PENALTY
+                return score
+            }
+
         override fun toString(): String {
             return "$local -> $remote"
         }
@@ -706,6 +819,9 @@ class IceAgent(
         private const val MAX_CHECKLIST_SIZE = 100
         private val LOG_DATA_PACKET_CONTENT = System.getProperty("essential.sps.log_data_packet_content").toBoolean()
         private val RELAY_PENALTY = Integer.getInteger("essential.sps.relay_latency_threshold", 100)
+        private val PAIR_SWITCH_THRESHOLD = Integer.getInteger("essential.sps.pair_switch_threshold", 10)
+        private val MIN_NOMINATION_WAIT = 30.seconds
+        private val DIRECT_MIN_NOMINATION_WAIT = 10.seconds
         private val sha256 = MessageDigest.getInstance("SHA-256")
 
         private fun LoggingEventBuilder.addKeyValues(candidate: LocalCandidate): LoggingEventBuilder {
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.ice
+
+import java.net.InetAddress
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Remembers which kinds of candidate pairs have passed their connectivity checks in earlier sessions (of the current
+ * run of the game), so [IceAgent] can check the ones which are likely to work first.
+ *
+ * Pairs are grouped by the local interface they are sent from (the address of the local base) and the types of both
+ * candidates, e.g. whether host-to-host pairs from a given interface ever worked, or whether it's always just the
+ * relay ones.
+ */
+internal object PairHistory {
+    private data class Key(val localInterface: InetAddress, val localType: CandidateType, val remoteType: CandidateType)
+
+    private class Stats {
+        var successes = 0
+        var failures = 0
+    }
+
+    private val stats = ConcurrentHashMap<Key, Stats>()
+
+    fun recordSuccess(local: LocalCandidate, remote: RemoteCandidate) {
+        val entry = stats.computeIfAbsent(key(local, remote)) { Stats() }
+        synchronized(entry) { entry.successes++ }
+    }
+
+    fun recordFailure(local: LocalCandidate, remote: RemoteCandidate) {
+        val entry = stats.computeIfAbsent(key(local, remote)) { Stats() }
+        synchronized(entry) { entry.failures++ }
+    }
+
+    /**
+     * Returns a coarse estimate of how likely a check of the given pair is to succeed, from 0 (has always failed) to
+     * [MAX_LIKELIHOOD] (has always succeeded). Pairs we know nothing about are placed in the middle.
+     *
+     * The estimate is intentionally coarse, so it only overrides the regular pair priority when there's a clear
+     * difference, otherwise the usual priority order (which the remote uses as well) is kept.
+     */
+    fun likelihood(local: LocalCandidate, remote: RemoteCandidate): Int {
+        val entry = stats[key(local, remote)] ?: return MAX_LIKELIHOOD / 2
+        val (successes, failures) = synchronized(entry) { entry.successes to entry.failures }
+        // Laplace's rule of succession, so a single result does not immediately push it to one of the extremes
+        val estimate = (successes + 1f) / (successes + failures + 2f)
+        return (estimate * (MAX_LIKELIHOOD + 1)).toInt().coerceAtMost(MAX_LIKELIHOOD)
+    }
+
+    private fun key(local: LocalCandidate, remote: RemoteCandidate) =
+        Key(local.base.address, local.type, remote.type)
+
+    const val MAX_LIKELIHOOD = 3
+}
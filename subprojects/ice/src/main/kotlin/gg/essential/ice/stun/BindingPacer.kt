@@ -39,6 +39,10 @@ import kotlin.time.Duration.Companion.milliseconds
  *   all those out asap. Since these do not affect the other client, we should be free to choose a different value here.
  *   Bandwidth should also not be a concern because these packets are only on the order of 100 bytes and we have a
  *   fairly limited number of servers we need to contact.
+ * - If we observe loss (responses which only arrived after one or more retransmissions, see [onResponse]), we back
+ *   off the regular interval up to [MAX_INTERVAL], and then slowly recover back to the configured [interval] as
+ *   requests get through on the first try again. We never go faster than [interval] though, to stay in sync with
+ *   Ice4J.
  */
 class BindingPacer(
     private val coroutineScope: CoroutineScope,
@@ -47,12 +51,15 @@ class BindingPacer(
     private val highPrioRequests = Channel<CompletableDeferred<Unit>>(Channel.UNLIMITED)
     private val regularRequests = Channel<CompletableDeferred<Unit>>(Channel.UNLIMITED)
 
+    @Volatile
+    private var currentInterval = interval
+
     init {
         coroutineScope.launch(Dispatchers.Unconfined) {
             while (true) {
                 val (request, delay) = select {
                     highPrioRequests.onReceive { it to MIN_INTERVAL }
-                    regularRequests.onReceive { it to interval }
+                    regularRequests.onReceive { it to currentInterval }
                 }
 
                 if (!request.isCompleted) {
@@ -76,7 +83,24 @@ class BindingPacer(
         }
     }
 
+    /**
+     * Reports that a response was received for a paced request after the given amount of retransmissions, so the
+     * pacer can adapt to loss on the network.
+     *
+     * Requests which never received any response must not be reported, those are far more likely to have been sent to
+     * an unreachable candidate than to have been lost.
+     */
+    fun onResponse(retransmissions: Int) {
+        currentInterval = if (retransmissions > 0) {
+            (currentInterval * 1.5).coerceAtMost(MAX_INTERVAL)
+        } else {
+            (currentInterval - RECOVERY_STEP).coerceAtLeast(interval)
+        }
+    }
+
     companion object {
         private val MIN_INTERVAL = 5.milliseconds // as per RFC
+        private val MAX_INTERVAL = 200.milliseconds
+        private val RECOVERY_STEP = 5.milliseconds
     }
 }
\ No newline at end of file
@@ -17,6 +17,7 @@ import java.net.Inet4Address
 import java.net.Inet6Address
 import java.net.InetAddress
 import java.net.InetSocketAddress
+import java.nio.ByteBuffer
 import javax.crypto.Mac
 import javax.crypto.spec.SecretKeySpec
 import kotlin.experimental.xor
@@ -43,75 +44,85 @@ data class StunMessage(
         get() = attribute<StunAttribute.MessageIntegrity>()?.key
 
     fun encode(): ByteArray {
-        fun encodeXorAddress(address: InetSocketAddress): ByteArray {
+        // String attributes are encoded up front, so their size and content are guaranteed to agree
+        val stringBytes = attributes.map { attr ->
+            when (attr) {
+                is StunAttribute.Username -> attr.username.encodeToByteArray()
+                is StunAttribute.Software -> attr.value.encodeToByteArray()
+                else -> null
+            }
+        }
+        fun valueSize(index: Int): Int = stringBytes[index]?.size ?: encodedValueSize(attributes[index])
+
+        var size = HEADER_SIZE
+        if (type != StunType.Send) {
+            size += 4 + SOFTWARE_BYTES.size.padToMultipleOf(4)
+        }
+        for (i in attributes.indices) {
+            size += 4 + valueSize(i).padToMultipleOf(4)
+        }
+
+        val bytes = ByteArray(size)
+        val buf = ByteBuffer.wrap(bytes)
+
+        fun putXorAddress(address: InetSocketAddress) {
             val family = when (address.address) {
                 is Inet4Address -> 1
                 is Inet6Address -> 2
                 else -> throw IOException("Unknown address family ${address.address}")
             }
-            val port = address.port
             val addressBytes = address.address.address
-            val addressMask = MAGIC_COOKIE + transactionId.bytes
+            buf.put(0.toByte())
+            buf.put(family.toByte())
+            buf.putShort((address.port xor MAGIC_COOKIE_INT.ushr(16)).toShort())
             for (i in addressBytes.indices) {
-                addressBytes[i] = addressBytes[i].xor(addressMask[i])
+                val mask = if (i < 4) MAGIC_COOKIE[i] else transactionId.bytes[i - 4]
+                buf.put(addressBytes[i].xor(mask))
             }
-            val bytes = ByteArray(4 + addressBytes.size)
-            bytes[1] = family.toByte()
-            bytes[2] = port.shr(8).toByte().xor(MAGIC_COOKIE[0])
-            bytes[3] = port.toByte().xor(MAGIC_COOKIE[1])
-            addressBytes.copyInto(bytes, 4)
-            return bytes
-        }
-        fun encodeInt(value: Int): ByteArray {
-            return byteArrayOf(
-                value.shr(24).toByte(),
-                value.shr(16).toByte(),
-                value.shr(8).toByte(),
-                value.shr(0).toByte(),
-            )
-        }
-        fun encodeLong(value: Long): ByteArray {
-            return byteArrayOf(
-                value.shr(56).toByte(),
-                value.shr(48).toByte(),
-                value.shr(40).toByte(),
-                value.shr(32).toByte(),
-                value.shr(24).toByte(),
-                value.shr(16).toByte(),
-                value.shr(8).toByte(),
-                value.shr(0).toByte(),
-            )
-        }
-
-        val attributes = attributes.toMutableList()
-
-        if (type != StunType.Send) {
-            attributes.add(0, StunAttribute.Software(SOFTWARE))
         }
 
-        val encodedAttrs = attributes.map { attr ->
+        fun putAttribute(type: StunAttributeType, attr: StunAttribute?, index: Int) {
+            val valueSize = if (attr == null) SOFTWARE_BYTES.size else valueSize(index)
+            buf.putShort(type.id.toShort())
+            buf.putShort(valueSize.toShort())
+            val valueStart = buf.position()
             when (attr) {
-                is StunAttribute.MappedAddress -> throw IllegalArgumentException("MappedAddress encoding not implemented.")
-                is StunAttribute.XorMappedAddress -> Pair(StunAttributeType.XorMappedAddress, encodeXorAddress(attr.address))
-                is StunAttribute.Username -> Pair(StunAttributeType.Username, attr.username.encodeToByteArray())
-                is StunAttribute.MessageIntegrity -> Pair(StunAttributeType.MessageIntegrity, ByteArray(20))
-                is StunAttribute.ErrorCode -> throw IllegalArgumentException("ErrorCode encoding not implemented.")
-                is StunAttribute.UnknownAttributes -> throw IllegalArgumentException("UnknownAttributes encoding not implemented.")
-                is StunAttribute.ChannelNumber -> Pair(StunAttributeType.ChannelNumber, encodeInt(attr.number.toInt().shl(16)))
-                is StunAttribute.Lifetime -> Pair(StunAttributeType.Lifetime, encodeInt(attr.seconds.toInt()))
-                is StunAttribute.XorPeerAddress -> Pair(StunAttributeType.XorPeerAddress, encodeXorAddress(attr.address))
-                is StunAttribute.Data -> Pair(StunAttributeType.Data, attr.bytes)
-                is StunAttribute.XorRelayedAddress -> Pair(StunAttributeType.XorRelayedAddress, encodeXorAddress(attr.address))
-                is StunAttribute.RequestedTransport -> Pair(StunAttributeType.RequestedTransport, byteArrayOf(17/*UDP*/, 0, 0, 0))
-                is StunAttribute.Priority -> Pair(StunAttributeType.Priority, encodeInt(attr.value))
-                is StunAttribute.UseCandidate -> Pair(StunAttributeType.UseCandidate, ByteArray(0))
-                is StunAttribute.Software -> Pair(StunAttributeType.Software, attr.value.encodeToByteArray())
-                is StunAttribute.TransactionTransmitCounter -> Pair(
-                    StunAttributeType.TransactionTransmitCounter,
-                    byteArrayOf(0, 0, attr.request.toByte(), attr.response.toByte()))
-                is StunAttribute.IceControlling -> Pair(StunAttributeType.IceControlling, encodeLong(attr.tiebreaker.toLong()))
-                is StunAttribute.IceControlled -> Pair(StunAttributeType.IceControlled, encodeLong(attr.tiebreaker.toLong()))
+                null -> buf.put(SOFTWARE_BYTES)
+                is StunAttribute.XorMappedAddress -> putXorAddress(attr.address)
+                is StunAttribute.Username -> buf.put(stringBytes[index]!!)
+                is StunAttribute.MessageIntegrity -> {
+                    val key: ByteArray = attr.key
+                        ?: throw IOException("Cannot encode MessageIntegrity without password.")
+                    // The stored message length includes the MessageIntegrity attribute
+                    buf.putShort(2, (valueStart + 20 - HEADER_SIZE).toShort())
+                    // But the input to the HMAC is the content up to and including the **preceding** attribute
+                    val mac = hmacSha1(key)
+                    mac.update(bytes, 0, valueStart - 4)
+                    mac.doFinal(bytes, valueStart)
+                    buf.position(valueStart + 20)
+                }
+                is StunAttribute.ChannelNumber -> buf.putInt(attr.number.toInt().shl(16))
+                is StunAttribute.Lifetime -> buf.putInt(attr.seconds.toInt())
+                is StunAttribute.XorPeerAddress -> putXorAddress(attr.address)
+                is StunAttribute.Data -> buf.put(attr.bytes)
+                is StunAttribute.XorRelayedAddress -> putXorAddress(attr.address)
+                is StunAttribute.RequestedTransport -> buf.putInt(17/*UDP*/ shl 24)
+                is StunAttribute.Priority -> buf.putInt(attr.value)
+                is StunAttribute.UseCandidate -> {}
+                is StunAttribute.Software -> buf.put(stringBytes[index]!!)
+                is StunAttribute.TransactionTransmitCounter -> {
+                    buf.putShort(0.toShort())
+                    buf.put(attr.request.toByte())
+                    buf.put(attr.response.toByte())
+                }
+                is StunAttribute.IceControlling -> buf.putLong(attr.tiebreaker.toLong())
+                is StunAttribute.IceControlled -> buf.putLong(attr.tiebreaker.toLong())
+                is StunAttribute.MappedAddress,
+                is StunAttribute.ErrorCode,
+                is StunAttribute.UnknownAttributes -> throw IllegalStateException() // rejected by encodedValueSize
             }
+            // Padding
+            repeat(valueSize.padToMultipleOf(4) - valueSize) { buf.put(0.toByte()) }
         }
 
         val typeAndClass = run {
@@ -123,54 +134,89 @@ data class StunMessage(
                 .or(c.and(0b10).shl(7))
                 .or(c.and(0b1).shl(4))
         }
-        val attrsLength = encodedAttrs.sumOf { 4 + it.second.size.padToMultipleOf(4) }
-
-        val bytes = ByteArray(HEADER_SIZE + attrsLength)
-        bytes[0] = typeAndClass.shr(8).toByte()
-        bytes[1] = typeAndClass.toByte()
+        buf.putShort(typeAndClass.toShort())
         // Length written later because MessageIntegrity handling might overwrite it
-        MAGIC_COOKIE.copyInto(bytes, 4)
-        transactionId.bytes.copyInto(bytes, 8)
-
-        var offset = 20
-        for ((type, encodedAttr) in encodedAttrs) {
-            val attrLength = encodedAttr.size
-            bytes[offset] = type.id.shr(8).toByte()
-            bytes[offset + 1] = type.id.toByte()
-            bytes[offset + 2] = attrLength.shr(8).toByte()
-            bytes[offset + 3] = attrLength.toByte()
-            offset += 4
-            encodedAttr.copyInto(bytes, offset)
-            offset += attrLength.padToMultipleOf(4)
-
-            if (type == StunAttributeType.MessageIntegrity) {
-                // The input to the HMAC is the content up to and including the **preceding** attribute
-                val verifiedLength = offset - 24
-                // The stored message length however includes the MessageIntegrity attribute
-                val storedLength = offset
-                bytes[2] = (storedLength - HEADER_SIZE).shr(8).toByte()
-                bytes[3] = (storedLength - HEADER_SIZE).toByte()
-                val key: ByteArray = attributes.firstNotNullOf { it as? StunAttribute.MessageIntegrity }.key
-                    ?: throw IOException("Cannot encode MessageIntegrity without password.")
-                val mac = Mac.getInstance("HmacSHA1")
-                mac.init(SecretKeySpec(key, "HmacSHA1"))
-                mac.update(bytes, 0, verifiedLength)
-                val hmac = mac.doFinal()
-                hmac.copyInto(bytes, offset - 20)
-            }
+        buf.putShort(0.toShort())
+        buf.put(MAGIC_COOKIE)
+        buf.put(transactionId.bytes)
+
+        if (type != StunType.Send) {
+            putAttribute(StunAttributeType.Software, null, -1)
+        }
+        for ((i, attr) in attributes.withIndex()) {
+            putAttribute(attr.encodedType, attr, i)
         }
 
         // And finally, the true length
-        bytes[2] = attrsLength.shr(8).toByte()
-        bytes[3] = attrsLength.toByte()
+        buf.putShort(2, (buf.position() - HEADER_SIZE).toShort())
 
         return bytes
     }
 
     companion object {
-        private val SOFTWARE = "essential.gg v${VersionInfo().essentialVersion}"
+        private val SOFTWARE_BYTES = "essential.gg v${VersionInfo().essentialVersion}".encodeToByteArray()
         private const val HEADER_SIZE = 20
         private val MAGIC_COOKIE = byteArrayOf(0x21, 0x12, 0xA4.toByte(), 0x42)
+        private const val MAGIC_COOKIE_INT = 0x2112A442
+
+        /**
+         * [Mac.getInstance] has to go through the security providers every time, which is fairly expensive for
+         * something we need for almost every packet, so we keep one instance per thread instead.
+         */
+        private val HMAC_SHA1 = ThreadLocal.withInitial { Mac.getInstance("HmacSHA1") }
+
+        private fun hmacSha1(key: ByteArray): Mac =
+            HMAC_SHA1.get().apply { init(SecretKeySpec(key, "HmacSHA1")) }
+
+        private val StunAttribute.encodedType: StunAttributeType
+            get() = when (this) {
+                is StunAttribute.MappedAddress -> StunAttributeType.MappedAddress
+                is StunAttribute.XorMappedAddress -> StunAttributeType.XorMappedAddress
+                is StunAttribute.Username -> StunAttributeType.Username
+                is StunAttribute.MessageIntegrity -> StunAttributeType.MessageIntegrity
+                is StunAttribute.ErrorCode -> StunAttributeType.ErrorCode
+                is StunAttribute.UnknownAttributes -> StunAttributeType.UnknownAttributes
+                is StunAttribute.ChannelNumber -> StunAttributeType.ChannelNumber
+                is StunAttribute.Lifetime -> StunAttributeType.Lifetime
+                is StunAttribute.XorPeerAddress -> StunAttributeType.XorPeerAddress
+                is StunAttribute.Data -> StunAttributeType.Data
+                is StunAttribute.XorRelayedAddress -> StunAttributeType.XorRelayedAddress
+                is StunAttribute.RequestedTransport -> StunAttributeType.RequestedTransport
+                is StunAttribute.Priority -> StunAttributeType.Priority
+                is StunAttribute.UseCandidate -> StunAttributeType.UseCandidate
+                is StunAttribute.Software -> StunAttributeType.Software
+                is StunAttribute.TransactionTransmitCounter -> StunAttributeType.TransactionTransmitCounter
+                is StunAttribute.IceControlling -> StunAttributeType.IceControlling
+                is StunAttribute.IceControlled -> StunAttributeType.IceControlled
+            }
+
+        private fun encodedValueSize(attr: StunAttribute): Int = when (attr) {
+            is StunAttribute.MappedAddress -> throw IllegalArgumentException("MappedAddress encoding not implemented.")
+            is StunAttribute.XorMappedAddress -> 4 + attr.address.address.address.size
+            is StunAttribute.Username -> throw IllegalStateException() // encoded up front by encode
+            is StunAttribute.MessageIntegrity -> 20
+            is StunAttribute.ErrorCode -> throw IllegalArgumentException("ErrorCode encoding not implemented.")
+            is StunAttribute.UnknownAttributes -> throw IllegalArgumentException("UnknownAttributes encoding not implemented.")
+            is StunAttribute.ChannelNumber -> 4
+            is StunAttribute.Lifetime -> 4
+            is StunAttribute.XorPeerAddress -> 4 + attr.address.address.address.size
+            is StunAttribute.Data -> attr.bytes.size
+            is StunAttribute.XorRelayedAddress -> 4 + attr.address.address.address.size
+            is StunAttribute.RequestedTransport -> 4
+            is StunAttribute.Priority -> 4
+            is StunAttribute.UseCandidate -> 0
+            is StunAttribute.Software -> throw IllegalStateException() // encoded up front by encode
+            is StunAttribute.TransactionTransmitCounter -> 4
+            is StunAttribute.IceControlling -> 8
+            is StunAttribute.IceControlled -> 8
+        }
+
+        private fun ByteArray.regionEquals(offset: Int, other: ByteArray): Boolean {
+            for (i in other.indices) {
+                if (this[offset + i] != other[i]) return false
+            }
+            return true
+        }
 
         fun looksLikeStun(bytes: ByteArray): Boolean {
             if (bytes.size < HEADER_SIZE) return false
@@ -179,7 +225,7 @@ data class StunMessage(
             // Message length is always aligned to multiples of 4 bytes
             if (bytes[3].toInt() and 0b00000011 != 0) return false
             // Magic cookie
-            if (!bytes.sliceArray(4 until 8).contentEquals(MAGIC_COOKIE)) return false
+            if (!bytes.regionEquals(4, MAGIC_COOKIE)) return false
             // Certainly looks like STUN
             return true
         }
@@ -213,28 +259,29 @@ data class StunMessage(
                 throw IOException("Invalid message length, was $length but only ${bytes.size - HEADER_SIZE} bytes remain.")
             }
 
-            val cookie = bytes.sliceArray(4 until 8)
-            if (!cookie.contentEquals(MAGIC_COOKIE)) {
-                throw IOException("Invalid magic cookie value ${cookie.contentToString()}")
+            if (!bytes.regionEquals(4, MAGIC_COOKIE)) {
+                throw IOException("Invalid magic cookie value ${bytes.sliceArray(4 until 8).contentToString()}")
             }
 
-            val transactionId = bytes.sliceArray(8 until 20)
+            val transactionId = TransactionId(bytes.sliceArray(8 until 20))
 
             val attributes = mutableListOf<StunAttribute>()
 
             var offset = HEADER_SIZE
 
-            fun decodeXorAddress(xorMask: ByteArray = MAGIC_COOKIE + transactionId): InetSocketAddress {
+            // Mask is the magic cookie followed by the transaction id, which is exactly what's at offset 4 in the header
+            fun decodeXorAddress(xor: Boolean = true): InetSocketAddress {
                 val addressBytes = when (val family = bytes[offset + 1].toUByte().toInt()) {
                     1 -> 4
                     2 -> 16
                     else -> throw IOException("Unknown address family $family")
                 }
-                val port = bytes[offset + 2].xor(xorMask[0]).toUByte().toInt()
-                    .shl(8).or(bytes[offset + 3].xor(xorMask[1]).toUByte().toInt())
-                val address = bytes.sliceArray(offset + 4 until offset + 4 + addressBytes)
+                fun mask(i: Int): Byte = if (xor) bytes[4 + i] else 0
+                val port = bytes[offset + 2].xor(mask(0)).toUByte().toInt()
+                    .shl(8).or(bytes[offset + 3].xor(mask(1)).toUByte().toInt())
+                val address = ByteArray(addressBytes)
                 for (i in address.indices) {
-                    address[i] = address[i].xor(xorMask[i])
+                    address[i] = bytes[offset + 4 + i].xor(mask(i))
                 }
                 return InetSocketAddress(InetAddress.getByAddress(address), port)
             }
@@ -264,13 +311,7 @@ data class StunMessage(
                 offset += 4
 
                 attributes.add(when (StunAttributeType.byId[attrType]) {
-                    StunAttributeType.MappedAddress -> StunAttribute.MappedAddress(
-                        decodeXorAddress(
-                            xorMask = ByteArray(
-                                16
-                            )
-                        )
-                    )
+                    StunAttributeType.MappedAddress -> StunAttribute.MappedAddress(decodeXorAddress(xor = false))
                     StunAttributeType.XorMappedAddress -> StunAttribute.XorMappedAddress(decodeXorAddress())
                     StunAttributeType.Username -> {
                         if (attrLength > 512) {
@@ -281,14 +322,11 @@ data class StunMessage(
                     StunAttributeType.MessageIntegrity -> {
                         // The input to the HMAC is the content up to and including the **preceding** attribute
                         val verifiedLength = offset - 4
-                        val verifiedBytes = bytes.sliceArray(0 until verifiedLength)
                         // The stored message length however includes the MessageIntegrity attribute
                         val storedLength = offset + 20
-                        verifiedBytes[2] = (storedLength - HEADER_SIZE).shr(8).toByte()
-                        verifiedBytes[3] = (storedLength - HEADER_SIZE).toByte()
 
                         val key = if (msgClass.isResponse) {
-                            getClientKey(TransactionId(transactionId))
+                            getClientKey(transactionId)
                         } else {
                             val username = attributes.firstNotNullOfOrNull { (it as? StunAttribute.Username)?.username }
                                 ?: throw IOException("Integrity protected requests must include a username.")
@@ -298,11 +336,15 @@ data class StunMessage(
                             attributes.add(StunAttribute.MessageIntegrity(null))
                             break
                         }
-                        val mac = Mac.getInstance("HmacSHA1")
-                        mac.init(SecretKeySpec(key, "HmacSHA1"))
-                        mac.update(verifiedBytes)
-                        val hmac = mac.doFinal()
-                        if (!hmac.contentEquals(bytes.sliceArray(offset until offset + 20))) {
+                        if (attrLength != 20 || offset + 20 > bytes.size) {
+                            throw IOException("Invalid MESSAGE-INTEGRITY length: $attrLength")
+                        }
+                        val mac = hmacSha1(key)
+                        mac.update(bytes, 0, 2)
+                        mac.update((storedLength - HEADER_SIZE).shr(8).toByte())
+                        mac.update((storedLength - HEADER_SIZE).toByte())
+                        mac.update(bytes, 4, verifiedLength - 4)
+                        if (!bytes.regionEquals(offset, mac.doFinal())) {
                             throw IOException("Invalid HMAC")
                         }
                         attributes.add(StunAttribute.MessageIntegrity(key))
@@ -356,7 +398,7 @@ data class StunMessage(
                 offset += attrLength.padToMultipleOf(4)
             }
 
-            return StunMessage(msgType, msgClass, TransactionId(transactionId), attributes)
+            return StunMessage(msgType, msgClass, transactionId, attributes)
         }
 
         private fun Int.padToMultipleOf(multipleOf: Int): Int =
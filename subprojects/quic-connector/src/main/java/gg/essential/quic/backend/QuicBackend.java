@@ -12,6 +12,7 @@
 package gg.essential.quic.backend;
 
 import java.io.Closeable;
+import java.util.function.Consumer;
 
 public interface QuicBackend extends Closeable  {
 
@@ -23,4 +24,10 @@ public interface QuicBackend extends Closeable  {
 
     void quicSend(byte[] buf);
 
+    /**
+     * Collects the current stats of the QUIC connection and passes them to the given callback, on an arbitrary thread.
+     * The callback receives {@code null} if there is no open connection.
+     */
+    void collectStats(Consumer<QuicTransportStats> callback);
+
 }
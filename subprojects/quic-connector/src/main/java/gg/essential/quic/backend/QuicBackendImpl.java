@@ -41,6 +41,10 @@ import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
 import io.netty.incubator.codec.quic.InsecureQuicTokenHandler;
 import io.netty.incubator.codec.quic.QuicChannel;
 import io.netty.incubator.codec.quic.QuicClientCodecBuilder;
+import io.netty.incubator.codec.quic.QuicCodecBuilder;
+import io.netty.incubator.codec.quic.QuicConnectionPathStats;
+import io.netty.incubator.codec.quic.QuicConnectionStats;
+import io.netty.incubator.codec.quic.QuicCongestionControlAlgorithm;
 import io.netty.incubator.codec.quic.QuicServerCodecBuilder;
 import io.netty.incubator.codec.quic.QuicSslContext;
 import io.netty.incubator.codec.quic.QuicSslContextBuilder;
@@ -55,7 +59,9 @@ import org.slf4j.Logger;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.Locale;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static gg.essential.quic.QuicUtil.LOCALHOST;
 
@@ -70,13 +76,16 @@ public class QuicBackendImpl implements QuicBackend {
         .applicationProtocols("minecraft")
         .build();
 
-    private static final QuicClientCodecBuilder quicClientCodec = new QuicClientCodecBuilder()
-        .sslContext(quicClientSslContext)
-        // See https://www.rfc-editor.org/rfc/rfc9000.html#name-transport-parameter-definit
-        .maxIdleTimeout(30, TimeUnit.SECONDS)
-        .initialMaxData(10_000_000)
-        .initialMaxStreamDataBidirectionalLocal(10_000_000)
-        ;
+    /**
+     * Bandwidth (in bytes per second) we size our flow-control windows for.
+     * ICE checks only tell us the RTT, so we aim for 1Gbit/s, more than the upload of whoever is hosting will usually
+     * manage, so the window never ends up being what limits the sender. Combined with the minimum window below, the
+     * window starts growing with the RTT above 40ms.
+     */
+    private static final long TARGET_BANDWIDTH = Long.getLong("essential.sps.quic.target_bandwidth", 125_000_000L);
+    private static final long MIN_FLOW_CONTROL_WINDOW = 10_000_000;
+    private static final long MAX_FLOW_CONTROL_WINDOW = 64_000_000;
+    private static final QuicCongestionControlAlgorithm CONGESTION_CONTROL = congestionControlAlgorithm();
 
     private static final SelfSignedCert certificate;
     static {
@@ -92,15 +101,40 @@ public class QuicBackendImpl implements QuicBackend {
         .applicationProtocols("minecraft")
         .build();
 
-    private static final QuicServerCodecBuilder quicServerCodecBuilder = new QuicServerCodecBuilder()
-        .sslContext(quicServerSslContext)
-        .tokenHandler(InsecureQuicTokenHandler.INSTANCE) // ICE validates the target addresses
-        // See https://www.rfc-editor.org/rfc/rfc9000.html#name-transport-parameter-definit
-        .maxIdleTimeout(30, TimeUnit.SECONDS)
-        .initialMaxData(10_000_000)
-        .initialMaxStreamDataBidirectionalRemote(10_000_000)
-        .initialMaxStreamsBidirectional(10)
-        ;
+    private static QuicCongestionControlAlgorithm congestionControlAlgorithm() {
+        String value = System.getProperty("essential.sps.quic.congestion_control");
+        if (value == null) {
+            return QuicCongestionControlAlgorithm.CUBIC;
+        }
+        try {
+            return QuicCongestionControlAlgorithm.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return QuicCongestionControlAlgorithm.CUBIC;
+        }
+    }
+
+    /**
+     * Sizes the flow-control windows to twice the bandwidth-delay product of the path, so the sender does not stall
+     * waiting for window updates on long paths.
+     */
+    private static long flowControlWindow(QuicTransportConfig config) {
+        if (config.rttMillis <= 0) {
+            return MIN_FLOW_CONTROL_WINDOW;
+        }
+        long window = TARGET_BANDWIDTH * config.rttMillis / 1000 * 2;
+        return Math.max(MIN_FLOW_CONTROL_WINDOW, Math.min(MAX_FLOW_CONTROL_WINDOW, window));
+    }
+
+    private static <B extends QuicCodecBuilder<B>> B configure(B builder, QuicTransportConfig config) {
+        long window = flowControlWindow(config);
+        return builder
+            // See https://www.rfc-editor.org/rfc/rfc9000.html#name-transport-parameter-definit
+            .maxIdleTimeout(30, TimeUnit.SECONDS)
+            .initialMaxData(window)
+            .congestionControlAlgorithm(CONGESTION_CONTROL)
+            // Delay variations on relayed paths make HyStart leave slow start long before the link is saturated
+            .hystart(!config.relayed);
+    }
 
     // Arbitrary addresses we can pass to netty's QUIC codec
     private static final InetSocketAddress QUIC_LOCAL_ADDRESS = new InetSocketAddress("172.16.10.10", 10000);
@@ -111,6 +145,7 @@ public class QuicBackendImpl implements QuicBackend {
 
     private final Logger logger;
     private final QuicListener listener;
+    private final QuicTransportConfig config;
 
     private final EventLoop eventLoop = group.next();
 
@@ -118,9 +153,11 @@ public class QuicBackendImpl implements QuicBackend {
     private QuicChannel quicChannel;
     private QuicStreamChannel streamChannel;
 
-    public QuicBackendImpl(Logger logger, QuicListener listener) {
+    public QuicBackendImpl(Logger logger, QuicListener listener, QuicTransportConfig config) {
         this.logger = logger;
         this.listener = listener;
+        this.config = config;
+        logger.debug("Using {} (flow-control window {} bytes)", config, flowControlWindow(config));
     }
 
     public int connect() {
@@ -141,7 +178,10 @@ public class QuicBackendImpl implements QuicBackend {
         Channel quicConnectionChannel = new Bootstrap()
             .channel(LocalChannel.class)
             .group(eventLoop)
-            .handler(quicClientCodec.build())
+            .handler(configure(new QuicClientCodecBuilder(), config)
+                .sslContext(quicClientSslContext)
+                .initialMaxStreamDataBidirectionalLocal(flowControlWindow(config))
+                .build())
             .connect(udpTransportChannel.localAddress())
             .awaitUninterruptibly()
             .channel();
@@ -222,8 +262,11 @@ public class QuicBackendImpl implements QuicBackend {
             .awaitUninterruptibly()
             .channel();
 
-        ChannelHandler serverCodec = quicServerCodecBuilder
-            .clone()
+        ChannelHandler serverCodec = configure(new QuicServerCodecBuilder(), config)
+            .sslContext(quicServerSslContext)
+            .tokenHandler(InsecureQuicTokenHandler.INSTANCE) // ICE validates the target addresses
+            .initialMaxStreamDataBidirectionalRemote(flowControlWindow(config))
+            .initialMaxStreamsBidirectional(10)
             .handler(new ChannelInboundHandlerAdapter() {
                 @Override
                 public void channelInactive(ChannelHandlerContext ctx) throws Exception {
@@ -239,6 +282,7 @@ public class QuicBackendImpl implements QuicBackend {
                     if (waitingForInitialChannel) {
                         waitingForInitialChannel = false;
                         streamChannel = ch;
+                        quicChannel = ch.parent();
 
                         ch.pipeline().addLast(new McProxyHandler(listener) {
                             @Override
@@ -267,6 +311,32 @@ public class QuicBackendImpl implements QuicBackend {
         streamChannel.writeAndFlush(Unpooled.wrappedBuffer(buf));
     }
 
+    public void collectStats(Consumer<QuicTransportStats> callback) {
+        if (eventLoop.isShuttingDown()) {
+            callback.accept(null);
+            return;
+        }
+        eventLoop.execute(() -> {
+            QuicChannel quicChannel = this.quicChannel;
+            if (quicChannel == null || !quicChannel.isActive()) {
+                callback.accept(null);
+                return;
+            }
+            quicChannel.collectStats().addListener((GenericFutureListener<Future<QuicConnectionStats>>) statsFuture -> {
+                if (!statsFuture.isSuccess()) {
+                    callback.accept(null);
+                    return;
+                }
+                QuicConnectionStats stats = statsFuture.getNow();
+                // We only ever use a single path, so its RTT is the one of the connection
+                quicChannel.collectPathStats(0).addListener((GenericFutureListener<Future<QuicConnectionPathStats>>) pathFuture -> {
+                    long rttMillis = pathFuture.isSuccess() ? TimeUnit.NANOSECONDS.toMillis(pathFuture.getNow().rtt()) : -1;
+                    callback.accept(new QuicTransportStats(rttMillis, stats.sent(), stats.lost()));
+                });
+            });
+        });
+    }
+
     @Override
     public void close() throws IOException {
         if (streamChannel != null) {
@@ -65,6 +65,8 @@ public class QuicBackendLoader {
 
         loader.addClassExclusion(QuicBackend.class.getName());
         loader.addClassExclusion(QuicListener.class.getName());
+        loader.addClassExclusion(QuicTransportConfig.class.getName());
+        loader.addClassExclusion(QuicTransportStats.class.getName());
 
         // Netty's NativeLibraryLoader will throw an error if multiple resources for the same native are found on the
         // classpath. This is the case with mods such as e4mc and Luna, which include netty-incubator-codec-quic
@@ -74,10 +76,14 @@ public class QuicBackendLoader {
     }
 
     public QuicBackend createImpl(Logger logger, QuicListener listener) {
+        return createImpl(logger, listener, QuicTransportConfig.UNKNOWN);
+    }
+
+    public QuicBackend createImpl(Logger logger, QuicListener listener, QuicTransportConfig config) {
         try {
             Class<?> quicImplClass = loader.loadClass(IMPL_CLASS_NAME);
-            Constructor<?> constructor = quicImplClass.getDeclaredConstructor(Logger.class, QuicListener.class);
-            return (QuicBackend) constructor.newInstance(logger, listener);
+            Constructor<?> constructor = quicImplClass.getDeclaredConstructor(Logger.class, QuicListener.class, QuicTransportConfig.class);
+            return (QuicBackend) constructor.newInstance(logger, listener, config);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
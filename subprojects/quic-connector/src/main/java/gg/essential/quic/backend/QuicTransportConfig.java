@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.quic.backend;
+
+/**
+ * What we know about the path a QUIC connection is going to run over, so the backend can tune its transport parameters
+ * accordingly.
+ * Passed across the backend class loader boundary, so this must only ever refer to JDK types.
+ */
+public final class QuicTransportConfig {
+
+    public static final QuicTransportConfig UNKNOWN = new QuicTransportConfig(-1, false);
+
+    /** Round trip time measured during ICE connectivity checks, or -1 if unknown. */
+    public final long rttMillis;
+
+    /** Whether the path goes via a TURN relay. */
+    public final boolean relayed;
+
+    public QuicTransportConfig(long rttMillis, boolean relayed) {
+        this.rttMillis = rttMillis;
+        this.relayed = relayed;
+    }
+
+    @Override
+    public String toString() {
+        return "QuicTransportConfig{rttMillis=" + rttMillis + ", relayed=" + relayed + "}";
+    }
+}
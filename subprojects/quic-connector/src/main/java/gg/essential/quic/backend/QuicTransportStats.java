@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.quic.backend;
+
+/**
+ * Numbers the QUIC backend reports about a live connection, see {@link QuicBackend#collectStats}.
+ * Passed across the backend class loader boundary, so this must only ever refer to JDK types.
+ */
+public final class QuicTransportStats {
+
+    /** Smoothed round trip time as estimated by the congestion controller, or -1 if unknown. */
+    public final long rttMillis;
+
+    /** Total number of QUIC packets sent so far. */
+    public final long sentPackets;
+
+    /** Total number of QUIC packets which were deemed lost so far. */
+    public final long lostPackets;
+
+    public QuicTransportStats(long rttMillis, long sentPackets, long lostPackets) {
+        this.rttMillis = rttMillis;
+        this.sentPackets = sentPackets;
+        this.lostPackets = lostPackets;
+    }
+
+    @Override
+    public String toString() {
+        return "QuicTransportStats{rttMillis=" + rttMillis + ", sentPackets=" + sentPackets + ", lostPackets=" + lostPackets + "}";
+    }
+}
@@ -12,6 +12,7 @@
 package gg.essential.util.image.bitmap.impl
 
 import gg.essential.model.util.Color
+import gg.essential.util.image.bitmap.Bitmap
 import gg.essential.util.image.bitmap.MutableBitmap
 
 /**
@@ -37,6 +38,25 @@ internal class IntArrayBitmap(
         pixelData[y * width + x] = color.rgba.toInt()
     }
 
+    override fun set(x: Int, y: Int, w: Int, h: Int, color: Color) {
+        val value = color.rgba.toInt()
+        for (yLoop in y until y + h) {
+            val rowStart = yLoop * width + x
+            pixelData.fill(value, rowStart, rowStart + w)
+        }
+    }
+
+    override fun set(x: Int, y: Int, w: Int, h: Int, src: Bitmap, srcX: Int, srcY: Int, mirrorX: Boolean, mirrorY: Boolean) {
+        if (src !is IntArrayBitmap || mirrorX || mirrorY) {
+            super.set(x, y, w, h, src, srcX, srcY, mirrorX, mirrorY)
+            return
+        }
+        for (yLoop in 0 until h) {
+            val srcStart = (srcY + yLoop) * src.width + srcX
+            src.pixelData.copyInto(pixelData, (y + yLoop) * width + x, srcStart, srcStart + w)
+        }
+    }
+
     override fun mutableCopy(): MutableBitmap {
         return IntArrayBitmap(width, height, pixelData.clone())
     }